@@ -0,0 +1,248 @@
+package fr.wonder.pspc;
+
+import java.util.Arrays;
+import java.util.Objects;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import fr.wonder.pspc.SketchMath.Affine2;
+
+/**
+ * Renders the attractor of an iterated function system with the chaos game.<br>
+ * <br>
+ * A point is repeatedly moved by one of the maps picked at random with the
+ * given weights, and every pixel it lands on has its hit count incremented
+ * in a density buffer. The counts are never cleared, so the image converges
+ * progressively as {@link #iterate(long)} is called frame after frame, and
+ * is shown with a logarithmic {@link #toneMap(int[], int) tone mapping}.<br>
+ * <br>
+ * Iterations are split between workers running on the common fork-join
+ * pool. Each worker has its own point, its own random stream and its own
+ * density buffer which are summed into the shared one after each call, so
+ * workers never contend. The number of workers is capped so that their
+ * buffers stay below {@link #MAX_WORKER_PIXELS} in total. For a given
+ * seed, size and parallelism the result is always the same.
+ */
+public class ChaosGame {
+	
+	/** Iterations done without plotting when a worker starts, for its point to reach the attractor */
+	private static final int WARMUP_ITERATIONS = 32;
+	/** Total size of the worker density buffers, in pixels (32MB) */
+	private static final int MAX_WORKER_PIXELS = 1 << 23;
+	/** Densities below this are tone-mapped with a lookup table */
+	private static final int LOG_TABLE_SIZE = 4096;
+	
+	public final int width, height;
+	private final int mapCount;
+	/** coefficients of the maps, 6 per map, and cumulative weights */
+	private final float[] maps, cumulativeWeights;
+	private final int workers;
+	private final long seed;
+	
+	/** world to pixel transform */
+	private final Affine2 view = new Affine2();
+	private final int[] density;
+	private final int[][] workerDensity;
+	private final float[] workerX, workerY;
+	private FastRandom[] streams;
+	private long iterations;
+	
+	private final float[] logTable = new float[LOG_TABLE_SIZE];
+	
+	/**
+	 * @param maps the maps of the system
+	 * @param weights the probability of each map, they do not need to sum to 1
+	 * @param width the width of the density buffer, in pixels
+	 * @param height the height of the density buffer, in pixels
+	 * @param seed the seed of the random streams of the workers
+	 */
+	public ChaosGame(Affine2[] maps, float[] weights, int width, int height, long seed) {
+		if(maps.length == 0 || maps.length != weights.length)
+			throw new IllegalArgumentException("Expected one weight per map");
+		this.width = width;
+		this.height = height;
+		this.mapCount = maps.length;
+		this.maps = new float[6*mapCount];
+		this.cumulativeWeights = new float[mapCount];
+		this.workers = Math.max(1, Math.min(ForkJoinPool.getCommonPoolParallelism(), MAX_WORKER_PIXELS / (width*height)));
+		this.seed = seed;
+		this.density = new int[width*height];
+		this.workerDensity = new int[workers][width*height];
+		this.workerX = new float[workers];
+		this.workerY = new float[workers];
+		setMaps(maps, weights);
+		for(int i = 0; i < LOG_TABLE_SIZE; i++)
+			logTable[i] = (float) Math.log1p(i);
+	}
+	
+	/**
+	 * Replaces the maps of the system, the density is reset. The number of
+	 * maps cannot change.
+	 */
+	public void setMaps(Affine2[] maps, float[] weights) {
+		if(maps.length != mapCount || weights.length != mapCount)
+			throw new IllegalArgumentException("Expected " + mapCount + " maps and weights");
+		float total = 0;
+		for(float w : weights)
+			total += w;
+		float cumulated = 0;
+		for(int i = 0; i < mapCount; i++) {
+			Affine2 m = maps[i];
+			this.maps[6*i  ] = m.m00;
+			this.maps[6*i+1] = m.m01;
+			this.maps[6*i+2] = m.tx;
+			this.maps[6*i+3] = m.m10;
+			this.maps[6*i+4] = m.m11;
+			this.maps[6*i+5] = m.ty;
+			cumulated += weights[i];
+			cumulativeWeights[i] = cumulated/total;
+		}
+		// rounding must not leave a gap above the last map
+		cumulativeWeights[mapCount-1] = Float.POSITIVE_INFINITY;
+		reset();
+	}
+	
+	/** Sets the transform from the system coordinates to the density buffer pixels, the density is reset */
+	public void setView(Affine2 worldToPixels) {
+		view.set(worldToPixels.m00, worldToPixels.m01, worldToPixels.m10, worldToPixels.m11, worldToPixels.tx, worldToPixels.ty);
+		reset();
+	}
+	
+	/** Clears the density and restarts the workers from their initial random streams */
+	public void reset() {
+		Arrays.fill(density, 0);
+		Arrays.fill(workerX, 0);
+		Arrays.fill(workerY, 0);
+		streams = Sketch.randomStreams(seed, workers);
+		iterations = 0;
+	}
+	
+	/** Returns the number of iterations accumulated since the last reset */
+	public long iterations() {
+		return iterations;
+	}
+	
+	/** Returns the hit count of each pixel, pixel (x,y) being at x+y*width */
+	public int[] density() {
+		return density;
+	}
+	
+	/** Runs the given number of iterations split between the workers and adds their hits to the density */
+	public void iterate(long count) {
+		if(count <= 0)
+			return;
+		ForkJoinPool.commonPool().invoke(new WorkersTask(count, 0, workers));
+		ForkJoinPool.commonPool().invoke(new MergeTask(0, density.length));
+		iterations += count;
+	}
+	
+	/** Returns the share of count iterations done by the given worker */
+	private long workerIterations(long count, int worker) {
+		return count/workers + (worker < count%workers ? 1 : 0);
+	}
+	
+	private void runWorker(int worker, long count) {
+		FastRandom random = streams[worker];
+		int[] hits = workerDensity[worker];
+		float[] maps = this.maps, cumulativeWeights = this.cumulativeWeights;
+		float v00 = view.m00, v01 = view.m01, vtx = view.tx;
+		float v10 = view.m10, v11 = view.m11, vty = view.ty;
+		float x = workerX[worker], y = workerY[worker];
+		long warmup = iterations == 0 ? WARMUP_ITERATIONS : 0;
+		for(long i = -warmup; i < count; i++) {
+			float r = random.nextFloat();
+			int t = 0;
+			while(r >= cumulativeWeights[t])
+				t++;
+			int o = 6*t;
+			float nx = maps[o  ]*x + maps[o+1]*y + maps[o+2];
+			y = maps[o+3]*x + maps[o+4]*y + maps[o+5];
+			x = nx;
+			float px = v00*x + v01*y + vtx;
+			float py = v10*x + v11*y + vty;
+			if(i >= 0 && px >= 0 && py >= 0 && px < width && py < height)
+				hits[(int) px + (int) py * width]++;
+		}
+		workerX[worker] = x;
+		workerY[worker] = y;
+	}
+	
+	/**
+	 * Writes the density in ARGB pixels, the brightness of a pixel is
+	 * {@code log(1+hits)/log(1+max hits)} times the given color.
+	 *
+	 * @param pixels an array of at least width*height pixels, like {@link Sketch#pixels}
+	 *        when the canvas has the size of the density
+	 * @param rgb the color of the densest pixels
+	 */
+	public void toneMap(int[] pixels, int rgb) {
+		Objects.checkFromIndexSize(0, density.length, pixels.length);
+		int max = 0;
+		for(int d : density)
+			max = Math.max(max, d);
+		float scale = max == 0 ? 0 : 1 / (float) Math.log1p(max);
+		int r = (rgb >> 16) & 0xff, g = (rgb >> 8) & 0xff, b = rgb & 0xff;
+		for(int i = 0; i < density.length; i++) {
+			int d = density[i];
+			float t = (d < LOG_TABLE_SIZE ? logTable[d] : (float) Math.log1p(d)) * scale;
+			pixels[i] = 0xff000000 | (int) (r*t) << 16 | (int) (g*t) << 8 | (int) (b*t);
+		}
+	}
+	
+	private class WorkersTask extends RecursiveAction {
+		
+		private static final long serialVersionUID = 1L;
+		
+		private final long count;
+		private final int from, to;
+		
+		WorkersTask(long count, int from, int to) {
+			this.count = count;
+			this.from = from;
+			this.to = to;
+		}
+		
+		@Override
+		protected void compute() {
+			if(to-from == 1) {
+				runWorker(from, workerIterations(count, from));
+			} else {
+				int mid = (from+to) >>> 1;
+				invokeAll(
+						new WorkersTask(count, from, mid),
+						new WorkersTask(count, mid, to));
+			}
+		}
+		
+	}
+	
+	/** Adds the worker densities of a range of pixels to the shared density and clears them */
+	private class MergeTask extends RecursiveAction {
+		
+		private static final long serialVersionUID = 1L;
+		private static final int GRAIN = 1 << 14;
+		
+		private final int from, to;
+		
+		MergeTask(int from, int to) {
+			this.from = from;
+			this.to = to;
+		}
+		
+		@Override
+		protected void compute() {
+			if(to-from > GRAIN) {
+				int mid = (from+to) >>> 1;
+				invokeAll(new MergeTask(from, mid), new MergeTask(mid, to));
+				return;
+			}
+			for(int[] hits : workerDensity) {
+				for(int i = from; i < to; i++)
+					density[i] += hits[i];
+				Arrays.fill(hits, from, to, 0);
+			}
+		}
+		
+	}
+
+}
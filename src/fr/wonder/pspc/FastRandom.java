@@ -0,0 +1,86 @@
+package fr.wonder.pspc;
+
+/**
+ * A small, fast and seedable pseudo random generator (SplitMix64, the
+ * algorithm behind {@link java.util.SplittableRandom}).<br>
+ * <br>
+ * Instances are not thread safe, each thread should use its own. The
+ * random methods of {@link Sketch} already use one generator per thread,
+ * this class is meant for workers that need their own reproducible
+ * streams, see {@link Sketch#randomStreams(long, int)}.
+ */
+public class FastRandom {
+	
+	private static final long GOLDEN_GAMMA = 0x9e3779b97f4a7c15L;
+	
+	private long state;
+	
+	public FastRandom(long seed) {
+		this.state = seed;
+	}
+	
+	public void setSeed(long seed) {
+		this.state = seed;
+	}
+	
+	static long mix64(long z) {
+		z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+		z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+		return z ^ (z >>> 31);
+	}
+	
+	public long nextLong() {
+		return mix64(state += GOLDEN_GAMMA);
+	}
+	
+	public int nextInt() {
+		return (int) (nextLong() >>> 32);
+	}
+	
+	/**
+	 * Returns a uniformly distributed value in [0,bound[, bound must be
+	 * positive. Uses Lemire's multiply-shift reduction with its rejection
+	 * step, so the result is unbiased and another number is drawn with a
+	 * probability of at most bound/2^32.
+	 */
+	public int nextInt(int bound) {
+		if(bound <= 0)
+			throw new IllegalArgumentException("Bound must be positive");
+		long m = (nextLong() >>> 32) * bound;
+		long low = m & 0xffffffffL;
+		if(low < bound) {
+			// 2^32 mod bound, the values of low below it are over-represented
+			long threshold = (0x1_0000_0000L - bound) % bound;
+			while(low < threshold) {
+				m = (nextLong() >>> 32) * bound;
+				low = m & 0xffffffffL;
+			}
+		}
+		return (int) (m >>> 32);
+	}
+	
+	/** Returns a uniformly distributed float in [0,1[ */
+	public float nextFloat() {
+		return (nextLong() >>> 40) * 0x1.0p-24f;
+	}
+	
+	public float nextFloat(float min, float max) {
+		return nextFloat()*(max-min)+min;
+	}
+	
+	/** Fills a[from..to[ with uniform floats in [min,max[ */
+	public void fill(float[] a, int from, int to, float min, float max) {
+		float range = max-min;
+		for(int i = from; i < to; i++)
+			a[i] = nextFloat()*range+min;
+	}
+	
+	/**
+	 * Returns a new generator seeded from this one, the streams of the two
+	 * generators do not overlap in practice.
+	 */
+	public FastRandom split() {
+		return new FastRandom(mix64(nextLong()));
+	}
+
+}
@@ -0,0 +1,14 @@
+package fr.wonder.pspc;
+
+/**
+ * A function from float to float, the float version of
+ * {@link java.util.function.DoubleUnaryOperator} which the JDK does not
+ * have. Functions plotted with {@link Sketch#plotFunction(FloatUnaryOperator, float, float)}
+ * use it so that sampling never boxes.
+ */
+@FunctionalInterface
+public interface FloatUnaryOperator {
+
+	float apply(float x);
+
+}
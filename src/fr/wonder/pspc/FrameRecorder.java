@@ -0,0 +1,212 @@
+package fr.wonder.pspc;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import javax.imageio.ImageIO;
+
+/**
+ * Records the frames of a sketch without blocking the render thread on I/O.<br>
+ * <br>
+ * Each finished frame is copied into a buffer taken from a small pool and
+ * queued for a background encoder thread which writes it to disk. When all
+ * buffers are in use the frame is either dropped or the render thread waits
+ * for the encoder, depending on the {@link Policy}.<br>
+ * Recorders are created with {@link Sketch#record(String, Format, Policy)}.
+ */
+public class FrameRecorder {
+	
+	public enum Format {
+		/** One png file per frame in a directory, named frame-00001.png, frame-00002.png... */
+		PNG_SEQUENCE,
+		/**
+		 * A single file containing the frames one after the other, each pixel
+		 * stored as 3 bytes (r,g,b). It can be encoded with ffmpeg using
+		 * {@code -f rawvideo -pix_fmt rgb24 -s WIDTHxHEIGHT -r FPS -i file}
+		 */
+		RAW_RGB
+	}
+	
+	public enum Policy {
+		/** The render thread waits for a free buffer, no frame is lost */
+		BLOCK,
+		/** Frames are dropped when the encoder cannot keep up, drawing never waits */
+		DROP
+	}
+	
+	/** Number of frame buffers, how many frames the encoder can be late by */
+	private static final int POOL_SIZE = 8;
+	/** Queued to stop the encoder once every pending frame was written */
+	private static final int[] END_OF_RECORDING = new int[0];
+	/** Put in the free buffers when the encoder exits, wakes up and stops the submitters waiting for a buffer */
+	private static final int[] ENCODER_STOPPED = new int[0];
+	
+	public final int width, height;
+	private final File path;
+	private final Format format;
+	private final Policy policy;
+	
+	private final BlockingQueue<int[]> freeBuffers = new ArrayBlockingQueue<>(POOL_SIZE);
+	private final BlockingQueue<int[]> pendingFrames = new ArrayBlockingQueue<>(POOL_SIZE+1);
+	private final Thread encoder;
+	private final OutputStream rawOutput;
+	
+	private volatile boolean stopped;
+	private volatile boolean failed;
+	// read from any thread, each counter is only written by one thread (submit's caller or the encoder)
+	private volatile int submittedFrames, droppedFrames;
+	private volatile int writtenFrames;
+	
+	FrameRecorder(File path, Format format, Policy policy, int width, int height) throws IOException {
+		this.path = path;
+		this.format = format;
+		this.policy = policy;
+		this.width = width;
+		this.height = height;
+		if(format == Format.PNG_SEQUENCE) {
+			if(!path.isDirectory() && !path.mkdirs())
+				throw new IOException("Could not create directory " + path);
+			this.rawOutput = null;
+		} else {
+			this.rawOutput = new BufferedOutputStream(new FileOutputStream(path), 1 << 20);
+		}
+		for(int i = 0; i < POOL_SIZE; i++)
+			freeBuffers.add(new int[width*height]);
+		this.encoder = new Thread(this::runEncoder, "frame recorder");
+		encoder.setDaemon(true);
+		encoder.start();
+	}
+	
+	/**
+	 * Copies the given ARGB pixels and queues them for encoding. Frames that
+	 * do not have the size the recording started with are dropped.
+	 */
+	void submit(int[] pixels, int frameWidth, int frameHeight) {
+		if(stopped || failed)
+			return;
+		if(frameWidth != width || frameHeight != height) {
+			droppedFrames++;
+			return;
+		}
+		int[] buffer;
+		if(policy == Policy.BLOCK) {
+			try {
+				buffer = freeBuffers.take();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			}
+			if(buffer == ENCODER_STOPPED) {
+				freeBuffers.offer(ENCODER_STOPPED);
+				droppedFrames++;
+				return;
+			}
+		} else {
+			buffer = freeBuffers.poll();
+			if(buffer == null || buffer == ENCODER_STOPPED) {
+				droppedFrames++;
+				return;
+			}
+		}
+		System.arraycopy(pixels, 0, buffer, 0, width*height);
+		submittedFrames++;
+		pendingFrames.add(buffer);
+	}
+	
+	/** Waits for every queued frame to be written and closes the output, it can be called from any thread */
+	synchronized void stop() {
+		if(stopped)
+			return;
+		stopped = true;
+		pendingFrames.add(END_OF_RECORDING);
+		try {
+			encoder.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+	
+	private void runEncoder() {
+		BufferedImage image = format == Format.PNG_SEQUENCE ? new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB) : null;
+		byte[] rgb = format == Format.RAW_RGB ? new byte[width*height*3] : null;
+		try {
+			while(true) {
+				int[] frame = pendingFrames.take();
+				if(frame == END_OF_RECORDING)
+					break;
+				if(format == Format.PNG_SEQUENCE)
+					writePng(frame, image);
+				else
+					writeRaw(frame, rgb);
+				writtenFrames++;
+				freeBuffers.add(frame);
+			}
+		} catch (InterruptedException e) {
+			// the recording is abandoned
+		} catch (Throwable t) {
+			// any failure ends the recording, the frames still queued are lost
+			failed = true;
+			t.printStackTrace();
+		} finally {
+			// the pool is empty if a submitter is waiting, the offer cannot fail then
+			freeBuffers.offer(ENCODER_STOPPED);
+			if(rawOutput != null) {
+				try {
+					rawOutput.close();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		}
+	}
+	
+	private void writePng(int[] frame, BufferedImage image) throws IOException {
+		int[] data = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+		System.arraycopy(frame, 0, data, 0, frame.length);
+		File file = new File(path, String.format("frame-%05d.png", writtenFrames+1));
+		ImageIO.write(image, "png", file);
+	}
+	
+	private void writeRaw(int[] frame, byte[] rgb) throws IOException {
+		for(int i = 0, j = 0; i < frame.length; i++) {
+			int p = frame[i];
+			rgb[j++] = (byte) (p >> 16);
+			rgb[j++] = (byte) (p >> 8);
+			rgb[j++] = (byte) p;
+		}
+		rawOutput.write(rgb);
+	}
+	
+	/** Returns the number of frames queued for encoding so far */
+	public int submittedFrames() {
+		return submittedFrames;
+	}
+	
+	/** Returns the number of frames written to disk so far */
+	public int writtenFrames() {
+		return writtenFrames;
+	}
+	
+	/** Returns the number of frames dropped because the encoder could not keep up or the window was resized */
+	public int droppedFrames() {
+		return droppedFrames;
+	}
+	
+	/** Returns true if writing a frame failed, the recording stops at the first failure */
+	public boolean hasFailed() {
+		return failed;
+	}
+	
+	@Override
+	public String toString() {
+		return "Recording " + path + " (" + writtenFrames + " written, " + droppedFrames + " dropped)";
+	}
+
+}
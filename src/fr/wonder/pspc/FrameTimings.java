@@ -0,0 +1,202 @@
+package fr.wonder.pspc;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.util.Arrays;
+
+/**
+ * Per-frame timings recorded by the sketch loop.<br>
+ * <br>
+ * Every frame the time spent in {@code draw()}, the time spent presenting
+ * the frame on screen and the time spent waiting for the next frame are
+ * recorded in histograms. Recording is constant-time and allocation free,
+ * percentiles are only computed when read.<br>
+ * All values are read in milliseconds.
+ */
+public class FrameTimings {
+	
+	/** Number of frames kept for the frame-time graph */
+	public static final int GRAPH_LENGTH = 240;
+	private static final Color OVERLAY_BACKGROUND = new Color(0, 0, 0, 180);
+	
+	public final Histogram drawTimes = new Histogram();
+	public final Histogram presentTimes = new Histogram();
+	public final Histogram sleepTimes = new Histogram();
+	
+	private final long[] recentDraw = new long[GRAPH_LENGTH];
+	private final long[] recentPresent = new long[GRAPH_LENGTH];
+	private final long[] recentSleep = new long[GRAPH_LENGTH];
+	private int recentIndex;
+	
+	// the overlay text is formatted in place so that drawing it does not allocate
+	private final StringBuilder overlayText = new StringBuilder();
+	private char[] overlayChars = new char[64];
+	
+	FrameTimings() {}
+	
+	void record(long drawNanos, long presentNanos, long sleepNanos) {
+		drawTimes.record(drawNanos);
+		presentTimes.record(presentNanos);
+		sleepTimes.record(sleepNanos);
+		recentDraw[recentIndex] = drawNanos;
+		recentPresent[recentIndex] = presentNanos;
+		recentSleep[recentIndex] = sleepNanos;
+		recentIndex = (recentIndex+1) % GRAPH_LENGTH;
+	}
+	
+	/** Clears all recorded timings */
+	public void reset() {
+		drawTimes.reset();
+		presentTimes.reset();
+		sleepTimes.reset();
+		Arrays.fill(recentDraw, 0);
+		Arrays.fill(recentPresent, 0);
+		Arrays.fill(recentSleep, 0);
+	}
+	
+	@Override
+	public String toString() {
+		return String.format("draw %s | present %s | sleep %s", drawTimes, presentTimes, sleepTimes);
+	}
+	
+	/**
+	 * Draws the last {@link #GRAPH_LENGTH} frame times as stacked bars
+	 * (draw, present, sleep) with a line at the target frame time, and
+	 * the draw time percentiles.
+	 */
+	void drawOverlay(Graphics2D g, float targetFrameMillis) {
+		final int x0 = 5, y0 = 5, w = GRAPH_LENGTH, h = 80;
+		// the graph shows at most twice the target frame time, or 50ms when uncapped
+		float scaleMillis = targetFrameMillis > 0 ? 2*targetFrameMillis : 50;
+		float pxPerNano = h / (scaleMillis * 1e6f);
+		
+		g.setColor(OVERLAY_BACKGROUND);
+		g.fillRect(x0, y0, w, h+30);
+		for(int i = 0; i < GRAPH_LENGTH; i++) {
+			int f = (recentIndex+i) % GRAPH_LENGTH;
+			int x = x0+i;
+			int yd = (int) Math.min(h, recentDraw[f]*pxPerNano);
+			int yp = (int) Math.min(h-yd, recentPresent[f]*pxPerNano);
+			int ys = (int) Math.min(h-yd-yp, recentSleep[f]*pxPerNano);
+			int y = y0+h;
+			g.setColor(Color.orange);
+			g.drawLine(x, y, x, y-yd);
+			y -= yd;
+			g.setColor(Color.cyan);
+			g.drawLine(x, y, x, y-yp);
+			y -= yp;
+			g.setColor(Color.darkGray);
+			g.drawLine(x, y, x, y-ys);
+		}
+		if(targetFrameMillis > 0) {
+			g.setColor(Color.green);
+			g.drawLine(x0, y0+h/2, x0+w, y0+h/2);
+		}
+		g.setColor(Color.white);
+		overlayText.setLength(0);
+		overlayText.append("draw p50 ");
+		appendMillis(drawTimes.percentile(.5f));
+		overlayText.append(" p99 ");
+		appendMillis(drawTimes.percentile(.99f));
+		overlayText.append(" max ");
+		appendMillis(drawTimes.max());
+		drawOverlayText(g, x0+3, y0+h+13);
+		overlayText.setLength(0);
+		overlayText.append("present p99 ");
+		appendMillis(presentTimes.percentile(.99f));
+		overlayText.append("  (ms)");
+		drawOverlayText(g, x0+3, y0+h+26);
+	}
+	
+	/** Appends a duration with 2 decimals to the overlay text, like %.2f */
+	private void appendMillis(float millis) {
+		long hundredths = Math.round(millis*100);
+		overlayText.append(hundredths/100).append('.');
+		if(hundredths%100 < 10)
+			overlayText.append('0');
+		overlayText.append(hundredths%100);
+	}
+	
+	private void drawOverlayText(Graphics2D g, int x, int y) {
+		int length = overlayText.length();
+		if(overlayChars.length < length)
+			overlayChars = new char[length];
+		overlayText.getChars(0, length, overlayChars, 0);
+		g.drawChars(overlayChars, 0, length, x, y);
+	}
+	
+	/**
+	 * A fixed-size histogram of durations.<br>
+	 * Durations are bucketed with a resolution of {@link #BUCKET_NANOS} up
+	 * to {@link #BUCKET_COUNT}*{@link #BUCKET_NANOS}, longer durations are
+	 * counted in the last bucket. The exact maximum and mean are kept.
+	 */
+	public static class Histogram {
+		
+		public static final long BUCKET_NANOS = 20_000;
+		public static final int BUCKET_COUNT = 5000;
+		
+		private final int[] buckets = new int[BUCKET_COUNT];
+		private int count;
+		private long max;
+		private long total;
+		
+		void record(long nanos) {
+			int bucket = (int) Math.min(BUCKET_COUNT-1, Math.max(0, nanos) / BUCKET_NANOS);
+			buckets[bucket]++;
+			count++;
+			total += nanos;
+			max = Math.max(max, nanos);
+		}
+		
+		public void reset() {
+			Arrays.fill(buckets, 0);
+			count = 0;
+			max = 0;
+			total = 0;
+		}
+		
+		public int count() {
+			return count;
+		}
+		
+		public float max() {
+			return max / 1e6f;
+		}
+		
+		public float mean() {
+			return count == 0 ? 0 : total / 1e6f / count;
+		}
+		
+		/**
+		 * Returns the duration under which the given fraction of the recorded
+		 * durations fall, the upper bound of the matching bucket is returned.
+		 *
+		 * @param p a fraction in [0,1], .5 is the median
+		 */
+		public float percentile(float p) {
+			if(p < 0 || p > 1)
+				throw new IllegalArgumentException("Invalid percentile " + p);
+			if(count == 0)
+				return 0;
+			long threshold = (long) Math.ceil(p*count);
+			long cumulated = 0;
+			int i = 0;
+			for( ; i < BUCKET_COUNT-1; i++) {
+				cumulated += buckets[i];
+				if(cumulated >= threshold && cumulated > 0)
+					break;
+			}
+			if(i == BUCKET_COUNT-1) // overflow bucket
+				return max();
+			return Math.min(max, (i+1)*BUCKET_NANOS) / 1e6f;
+		}
+		
+		@Override
+		public String toString() {
+			return String.format("p50=%.2fms p99=%.2fms max=%.2fms", percentile(.5f), percentile(.99f), max());
+		}
+	
+	}
+
+}
@@ -0,0 +1,526 @@
+package fr.wonder.pspc;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Computes the gravitational accelerations of the particles of a {@link ParticleBuffer}.<br>
+ * <br>
+ * Particle j pulls particle i with an acceleration of
+ * {@code strength * mass[j] / max(d*d, (radius[i]+radius[j])^2)} along the
+ * line joining them, the radii keep close encounters from exploding.<br>
+ * Two methods are available:
+ * <ul>
+ * <li>{@link Method#EXACT} sums every pair, O(n^2)</li>
+ * <li>{@link Method#BARNES_HUT} groups far away particles using a quadtree,
+ * O(n log n). A node of size s seen at distance d is used as a single mass
+ * when {@code s/d < theta}, lower thetas are more precise and slower. The
+ * tree nodes are pooled in primitive arrays, rebuilding it every step does
+ * not allocate once the pool has grown.</li>
+ * </ul>
+ * The check mode ({@link #setCheckTolerance(float)}) also runs the exact
+ * method after each Barnes-Hut evaluation and fails when they differ too
+ * much, it is meant to tune theta and debug.<br>
+ * <br>
+ * Evaluations run on {@link #setThreads(int) a pool of threads}. Unless
+ * {@link #setStrictlyOrdered(boolean) strictly ordered}, the exact method
+ * evaluates each pair once and accumulates both sides of it in a slice
+ * private to each thread, the slices are then summed in a fixed order. The
+ * result is bitwise reproducible for a given thread count but changes with
+ * it. In strictly ordered mode every particle sums its own pulls in index
+ * order, twice as much work but the same result whatever the thread count.
+ * Barnes-Hut evaluations always sum per particle and do not depend on the
+ * thread count.
+ */
+public class GravitySolver {
+	
+	public enum Method {
+		EXACT,
+		BARNES_HUT
+	}
+	
+	private static final int LEAF_CAPACITY = 8;
+	/** Particles closer than the size of nodes at this depth stay in the same leaf */
+	private static final int MAX_DEPTH = 32;
+	private static final int STACK_SIZE = 3*MAX_DEPTH+4;
+	/** Number of particles evaluated by a task when the work is split per particle */
+	private static final int GRAIN = 256;
+	
+	private final float strength;
+	private Method method = Method.BARNES_HUT;
+	private float theta = .5f;
+	private float checkTolerance;
+	private float lastCheckError;
+	private boolean strictlyOrdered;
+	private int threads = 1;
+	private ForkJoinPool pool;
+	
+	// tree nodes, the 4 children of a node are contiguous and child[n] is the first one, -1 for leaves
+	private float[] nodeX, nodeY, nodeHalf;
+	private float[] nodeMass, comX, comY, nodeMaxRadius;
+	private int[] child, head, nodeCount, depth, leafFirst;
+	private int nodes;
+	/** positions of the particles in the tree, set by buildTree */
+	private float[] posX, posY;
+	/** next particle in the same leaf, -1 at the end of the list */
+	private int[] next = new int[0];
+	/** particles copied in tree order, order[k] is the index in the buffer of the k-th one */
+	private int[] order;
+	private float[] sortedX, sortedY, sortedMass, sortedRadius;
+	private final int[] stack = new int[STACK_SIZE];
+	/** tree walk stacks of the threads evaluating Barnes-Hut accelerations */
+	private final ThreadLocal<int[]> walkStacks = ThreadLocal.withInitial(() -> new int[STACK_SIZE]);
+	
+	private float[] exactAx = new float[0], exactAy = new float[0];
+	/** per-thread accumulation slices of the pairwise exact method */
+	private float[][] sliceAx = new float[0][], sliceAy = new float[0][];
+	
+	/** @param strength the gravitational constant */
+	public GravitySolver(float strength) {
+		this.strength = strength;
+		allocateNodes(64);
+	}
+	
+	public void setMethod(Method method) {
+		this.method = method;
+	}
+	
+	public Method getMethod() {
+		return method;
+	}
+	
+	/** Sets the Barnes-Hut opening angle, 0 gives the exact result with the overhead of the tree, defaults to .5 */
+	public void setTheta(float theta) {
+		if(theta < 0)
+			throw new IllegalArgumentException("Invalid opening angle " + theta);
+		this.theta = theta;
+	}
+	
+	public float getTheta() {
+		return theta;
+	}
+	
+	/**
+	 * Sets the number of threads evaluating accelerations, 1 evaluates on
+	 * the calling thread. Defaults to 1.
+	 */
+	public void setThreads(int threads) {
+		if(threads < 1)
+			throw new IllegalArgumentException("Invalid thread count " + threads);
+		if(threads == this.threads)
+			return;
+		if(pool != null)
+			pool.shutdown();
+		this.threads = threads;
+		this.pool = threads > 1 ? new ForkJoinPool(threads) : null;
+	}
+	
+	public int getThreads() {
+		return threads;
+	}
+	
+	/**
+	 * In strictly ordered mode the exact method sums the pulls of each
+	 * particle in index order, the result does not depend on the number of
+	 * threads. Disabled by default.
+	 */
+	public void setStrictlyOrdered(boolean strictlyOrdered) {
+		this.strictlyOrdered = strictlyOrdered;
+	}
+	
+	/**
+	 * Enables the check mode when tolerance is positive. The error is the
+	 * largest difference between the Barnes-Hut and exact accelerations of
+	 * a particle, divided by the mean exact acceleration magnitude.
+	 */
+	public void setCheckTolerance(float tolerance) {
+		this.checkTolerance = tolerance;
+	}
+	
+	/** Returns the error measured by the last check, 0 if the check mode is disabled */
+	public float lastCheckError() {
+		return lastCheckError;
+	}
+	
+	/**
+	 * Overwrites the accelerations {@code ax, ay} of every particle of the
+	 * buffer with the gravitational pull of the others.
+	 *
+	 * @throws IllegalStateException in check mode, if the Barnes-Hut result
+	 *         differs from the exact one by more than the tolerance
+	 */
+	public void computeAccelerations(ParticleBuffer p) {
+		if(method == Method.EXACT) {
+			if(strictlyOrdered)
+				run(new ParticlesTask(Stage.EXACT, p, p.ax, p.ay, 0, p.size()));
+			else
+				computePairwise(p);
+			return;
+		}
+		buildTree(p);
+		run(new ParticlesTask(Stage.BARNES_HUT, p, p.ax, p.ay, 0, p.size()));
+		if(checkTolerance > 0)
+			check(p);
+	}
+	
+	/* ------------------ Parallelism -------------------- */
+	
+	private enum Stage {
+		/** per particle exact sums, over a range of particles */
+		EXACT,
+		/** per particle Barnes-Hut walks, over a range of particles in tree order */
+		BARNES_HUT,
+		/** pairwise exact sums, over a range of slices */
+		PAIRS,
+		/** sum of the pairwise slices, over a range of particles */
+		REDUCE
+	}
+	
+	private void run(ParticlesTask task) {
+		if(pool == null)
+			task.compute();
+		else
+			pool.invoke(task);
+	}
+	
+	/**
+	 * Splits a stage in halves down to {@link #GRAIN} particles or to single
+	 * slices. How the work is split never changes which thread-private data
+	 * is written, so the results do not depend on scheduling.
+	 */
+	private class ParticlesTask extends RecursiveAction {
+		
+		private static final long serialVersionUID = 1L;
+		
+		private final Stage stage;
+		private final ParticleBuffer p;
+		private final float[] ax, ay;
+		private final int from, to;
+		
+		ParticlesTask(Stage stage, ParticleBuffer p, float[] ax, float[] ay, int from, int to) {
+			this.stage = stage;
+			this.p = p;
+			this.ax = ax;
+			this.ay = ay;
+			this.from = from;
+			this.to = to;
+		}
+		
+		@Override
+		protected void compute() {
+			int grain = stage == Stage.PAIRS ? 1 : GRAIN;
+			if(to-from > grain && pool != null) {
+				int mid = (from+to) >>> 1;
+				invokeAll(
+						new ParticlesTask(stage, p, ax, ay, from, mid),
+						new ParticlesTask(stage, p, ax, ay, mid, to));
+				return;
+			}
+			switch(stage) {
+			case EXACT:
+				exactRange(p, ax, ay, from, to);
+				break;
+			case BARNES_HUT:
+				int[] walkStack = walkStacks.get();
+				for(int k = from; k < to; k++)
+					accelerationOf(p, k, walkStack);
+				break;
+			case PAIRS:
+				for(int slice = from; slice < to; slice++)
+					pairwiseSlice(p, slice, threads);
+				break;
+			case REDUCE:
+				reduceSlices(ax, ay, from, to, threads);
+				break;
+			}
+		}
+		
+	}
+	
+	/* ------------------ Exact -------------------- */
+	
+	/**
+	 * Evaluates each pair once, slice s handles the rows i = s mod slices and
+	 * accumulates both particles of the pairs in its private arrays.
+	 */
+	private void computePairwise(ParticleBuffer p) {
+		int n = p.size();
+		if(sliceAx.length != threads || sliceAx[0].length < n) {
+			int capacity = Math.max(n, sliceAx.length == 0 ? 0 : sliceAx[0].length*2);
+			sliceAx = new float[threads][capacity];
+			sliceAy = new float[threads][capacity];
+		}
+		run(new ParticlesTask(Stage.PAIRS, p, null, null, 0, threads));
+		run(new ParticlesTask(Stage.REDUCE, p, p.ax, p.ay, 0, n));
+	}
+	
+	private void pairwiseSlice(ParticleBuffer p, int slice, int slices) {
+		float[] x = p.x, y = p.y, mass = p.mass, radius = p.radius;
+		float[] sx = sliceAx[slice], sy = sliceAy[slice];
+		int n = p.size();
+		Arrays.fill(sx, 0, n, 0);
+		Arrays.fill(sy, 0, n, 0);
+		// rows get shorter with i, interleaving them balances the slices
+		for(int i = slice; i < n; i += slices) {
+			float xi = x[i], yi = y[i], ri = radius[i], mi = mass[i];
+			float aix = 0, aiy = 0;
+			for(int j = i+1; j < n; j++) {
+				float dx = x[j]-xi, dy = y[j]-yi;
+				float d2 = dx*dx + dy*dy;
+				if(d2 == 0)
+					continue;
+				float minDist = ri+radius[j];
+				float f = strength / Math.max(d2, minDist*minDist) / (float) Math.sqrt(d2);
+				aix += dx*f*mass[j];
+				aiy += dy*f*mass[j];
+				sx[j] -= dx*f*mi;
+				sy[j] -= dy*f*mi;
+			}
+			sx[i] += aix;
+			sy[i] += aiy;
+		}
+	}
+	
+	private void reduceSlices(float[] ax, float[] ay, int from, int to, int slices) {
+		for(int i = from; i < to; i++) {
+			float sx = 0, sy = 0;
+			for(int s = 0; s < slices; s++) {
+				sx += sliceAx[s][i];
+				sy += sliceAy[s][i];
+			}
+			ax[i] = sx;
+			ay[i] = sy;
+		}
+	}
+	
+	private void exactRange(ParticleBuffer p, float[] ax, float[] ay, int from, int to) {
+		float[] x = p.x, y = p.y, mass = p.mass, radius = p.radius;
+		int n = p.size();
+		for(int i = from; i < to; i++) {
+			float xi = x[i], yi = y[i], ri = radius[i];
+			float sx = 0, sy = 0;
+			for(int j = 0; j < n; j++) {
+				float dx = x[j]-xi, dy = y[j]-yi;
+				float d2 = dx*dx + dy*dy;
+				if(j == i || d2 == 0)
+					continue;
+				float minDist = ri+radius[j];
+				float f = strength*mass[j] / Math.max(d2, minDist*minDist) / (float) Math.sqrt(d2);
+				sx += dx*f;
+				sy += dy*f;
+			}
+			ax[i] = sx;
+			ay[i] = sy;
+		}
+	}
+	
+	private void check(ParticleBuffer p) {
+		int n = p.size();
+		if(exactAx.length < n) {
+			exactAx = new float[n];
+			exactAy = new float[n];
+		}
+		run(new ParticlesTask(Stage.EXACT, p, exactAx, exactAy, 0, n));
+		double meanMagnitude = 0;
+		float maxError = 0;
+		for(int i = 0; i < n; i++) {
+			meanMagnitude += Math.hypot(exactAx[i], exactAy[i]);
+			maxError = Math.max(maxError, (float) Math.hypot(p.ax[i]-exactAx[i], p.ay[i]-exactAy[i]));
+		}
+		meanMagnitude /= n;
+		lastCheckError = meanMagnitude == 0 ? 0 : (float) (maxError / meanMagnitude);
+		if(lastCheckError > checkTolerance)
+			throw new IllegalStateException("Barnes-Hut error " + lastCheckError + " exceeds " + checkTolerance + " (theta=" + theta + ", " + n + " particles)");
+	}
+	
+	/* ------------------ Barnes-Hut -------------------- */
+	
+	private void allocateNodes(int capacity) {
+		nodeX = nodeX == null ? new float[capacity] : Arrays.copyOf(nodeX, capacity);
+		nodeY = nodeY == null ? new float[capacity] : Arrays.copyOf(nodeY, capacity);
+		nodeHalf = nodeHalf == null ? new float[capacity] : Arrays.copyOf(nodeHalf, capacity);
+		nodeMass = nodeMass == null ? new float[capacity] : Arrays.copyOf(nodeMass, capacity);
+		comX = comX == null ? new float[capacity] : Arrays.copyOf(comX, capacity);
+		comY = comY == null ? new float[capacity] : Arrays.copyOf(comY, capacity);
+		nodeMaxRadius = nodeMaxRadius == null ? new float[capacity] : Arrays.copyOf(nodeMaxRadius, capacity);
+		child = child == null ? new int[capacity] : Arrays.copyOf(child, capacity);
+		head = head == null ? new int[capacity] : Arrays.copyOf(head, capacity);
+		nodeCount = nodeCount == null ? new int[capacity] : Arrays.copyOf(nodeCount, capacity);
+		depth = depth == null ? new int[capacity] : Arrays.copyOf(depth, capacity);
+		leafFirst = leafFirst == null ? new int[capacity] : Arrays.copyOf(leafFirst, capacity);
+	}
+	
+	private void initNode(int node, float cx, float cy, float half, int nodeDepth) {
+		nodeX[node] = cx;
+		nodeY[node] = cy;
+		nodeHalf[node] = half;
+		child[node] = -1;
+		head[node] = -1;
+		nodeCount[node] = 0;
+		depth[node] = nodeDepth;
+	}
+	
+	private void buildTree(ParticleBuffer p) {
+		int n = p.size();
+		float[] x = posX = p.x, y = posY = p.y;
+		if(next.length < n) {
+			int capacity = Math.max(n, next.length*2);
+			next = new int[capacity];
+			order = new int[capacity];
+			sortedX = new float[capacity];
+			sortedY = new float[capacity];
+			sortedMass = new float[capacity];
+			sortedRadius = new float[capacity];
+		}
+		float minX = Float.POSITIVE_INFINITY, minY = Float.POSITIVE_INFINITY;
+		float maxX = Float.NEGATIVE_INFINITY, maxY = Float.NEGATIVE_INFINITY;
+		for(int i = 0; i < n; i++) {
+			minX = Math.min(minX, x[i]);
+			minY = Math.min(minY, y[i]);
+			maxX = Math.max(maxX, x[i]);
+			maxY = Math.max(maxY, y[i]);
+		}
+		// the root is a square slightly larger than the particles bounds
+		float half = Math.max(maxX-minX, maxY-minY)*.5f*1.001f + Float.MIN_NORMAL;
+		nodes = 1;
+		if(n == 0)
+			initNode(0, 0, 0, 1, 0);
+		else
+			initNode(0, (minX+maxX)*.5f, (minY+maxY)*.5f, half, 0);
+		for(int i = 0; i < n; i++)
+			insert(i);
+		sortParticles(p);
+		// children are always allocated after their parent, a reverse
+		// traversal of the pool sums the masses bottom up
+		for(int node = nodes-1; node >= 0; node--) {
+			float m = 0, mx = 0, my = 0, maxRadius = 0;
+			if(child[node] == -1) {
+				for(int k = leafFirst[node], end = k+nodeCount[node]; k < end; k++) {
+					m += sortedMass[k];
+					mx += sortedMass[k]*sortedX[k];
+					my += sortedMass[k]*sortedY[k];
+					maxRadius = Math.max(maxRadius, sortedRadius[k]);
+				}
+			} else {
+				for(int c = child[node]; c < child[node]+4; c++) {
+					m += nodeMass[c];
+					mx += nodeMass[c]*comX[c];
+					my += nodeMass[c]*comY[c];
+					maxRadius = Math.max(maxRadius, nodeMaxRadius[c]);
+				}
+			}
+			nodeMass[node] = m;
+			comX[node] = m == 0 ? nodeX[node] : mx/m;
+			comY[node] = m == 0 ? nodeY[node] : my/m;
+			nodeMaxRadius[node] = maxRadius;
+		}
+	}
+	
+	/**
+	 * Copies the particles in depth-first leaf order, the particles of a
+	 * leaf become contiguous and particles close in space are evaluated one
+	 * after the other, which keeps the tree walks in cache.
+	 */
+	private void sortParticles(ParticleBuffer p) {
+		int k = 0;
+		int top = 0;
+		stack[top++] = 0;
+		while(top > 0) {
+			int node = stack[--top];
+			if(child[node] != -1) {
+				for(int c = child[node]+3; c >= child[node]; c--)
+					stack[top++] = c;
+				continue;
+			}
+			leafFirst[node] = k;
+			for(int i = head[node]; i != -1; i = next[i]) {
+				order[k] = i;
+				sortedX[k] = p.x[i];
+				sortedY[k] = p.y[i];
+				sortedMass[k] = p.mass[i];
+				sortedRadius[k] = p.radius[i];
+				k++;
+			}
+		}
+	}
+	
+	private int quadrant(int node, float x, float y) {
+		return (x < nodeX[node] ? 0 : 1) + (y < nodeY[node] ? 0 : 2);
+	}
+	
+	private void insert(int i) {
+		int node = 0;
+		while(child[node] != -1)
+			node = child[node] + quadrant(node, posX[i], posY[i]);
+		next[i] = head[node];
+		head[node] = i;
+		if(++nodeCount[node] > LEAF_CAPACITY && depth[node] < MAX_DEPTH)
+			split(node);
+	}
+	
+	private void split(int node) {
+		if(nodes+4 > child.length)
+			allocateNodes(child.length*2);
+		int block = nodes;
+		nodes += 4;
+		float h = nodeHalf[node]*.5f;
+		float cx = nodeX[node], cy = nodeY[node];
+		int d = depth[node]+1;
+		initNode(block  , cx-h, cy-h, h, d);
+		initNode(block+1, cx+h, cy-h, h, d);
+		initNode(block+2, cx-h, cy+h, h, d);
+		initNode(block+3, cx+h, cy+h, h, d);
+		child[node] = block;
+		int i = head[node];
+		head[node] = -1;
+		nodeCount[node] = 0;
+		while(i != -1) {
+			int following = next[i];
+			insert(i);
+			i = following;
+		}
+	}
+	
+	/** Computes the acceleration of the k-th particle in tree order by walking the tree */
+	private void accelerationOf(ParticleBuffer p, int k, int[] stack) {
+		float xi = sortedX[k], yi = sortedY[k], ri = sortedRadius[k];
+		float theta2 = theta*theta;
+		float sx = 0, sy = 0;
+		int top = 0;
+		stack[top++] = 0;
+		while(top > 0) {
+			int node = stack[--top];
+			if(nodeMass[node] == 0)
+				continue;
+			if(child[node] == -1) {
+				for(int j = leafFirst[node], end = j+nodeCount[node]; j < end; j++) {
+					float dx = sortedX[j]-xi, dy = sortedY[j]-yi;
+					float d2 = dx*dx + dy*dy;
+					if(j == k || d2 == 0)
+						continue;
+					float minDist = ri+sortedRadius[j];
+					float f = strength*sortedMass[j] / Math.max(d2, minDist*minDist) / (float) Math.sqrt(d2);
+					sx += dx*f;
+					sy += dy*f;
+				}
+				continue;
+			}
+			float dx = comX[node]-xi, dy = comY[node]-yi;
+			float d2 = dx*dx + dy*dy;
+			float size = 2*nodeHalf[node];
+			if(size*size < theta2*d2) {
+				float minDist = ri+nodeMaxRadius[node];
+				float f = strength*nodeMass[node] / Math.max(d2, minDist*minDist) / (float) Math.sqrt(d2);
+				sx += dx*f;
+				sy += dy*f;
+			} else {
+				for(int c = child[node]; c < child[node]+4; c++)
+					stack[top++] = c;
+			}
+		}
+		p.ax[order[k]] = sx;
+		p.ay[order[k]] = sy;
+	}
+	
+}
@@ -0,0 +1,186 @@
+package fr.wonder.pspc;
+
+import java.util.Arrays;
+import java.util.Objects;
+
+/**
+ * A set of particles stored as parallel primitive arrays (structure of arrays).<br>
+ * <br>
+ * The i-th particle is made of {@code x[i], y[i]} its position,
+ * {@code px[i], py[i]} its previous position (used by verlet integration
+ * and to interpolate drawing), {@code vx[i], vy[i]} its velocity,
+ * {@code ax[i], ay[i]} its acceleration, {@code mass[i]} and {@code radius[i]}.
+ * Only the first {@link #size()} entries are meaningful.<br>
+ * The arrays are replaced when the buffer grows, they should not be kept
+ * across calls to {@link #add(float, float, float, float, float, float)}.<br>
+ * <br>
+ * Bulk operations run over contiguous arrays, which is much friendlier to
+ * the cache than lists of objects holding vectors. Draw a buffer with
+ * {@link Sketch#particles(ParticleBuffer)}.
+ */
+public class ParticleBuffer {
+	
+	public float[] x, y, px, py, vx, vy, ax, ay, mass, radius;
+	private int size;
+	
+	public ParticleBuffer(int initialCapacity) {
+		allocate(Math.max(1, initialCapacity));
+	}
+	
+	public ParticleBuffer() {
+		this(64);
+	}
+	
+	private void allocate(int capacity) {
+		x = x == null ? new float[capacity] : Arrays.copyOf(x, capacity);
+		y = y == null ? new float[capacity] : Arrays.copyOf(y, capacity);
+		px = px == null ? new float[capacity] : Arrays.copyOf(px, capacity);
+		py = py == null ? new float[capacity] : Arrays.copyOf(py, capacity);
+		vx = vx == null ? new float[capacity] : Arrays.copyOf(vx, capacity);
+		vy = vy == null ? new float[capacity] : Arrays.copyOf(vy, capacity);
+		ax = ax == null ? new float[capacity] : Arrays.copyOf(ax, capacity);
+		ay = ay == null ? new float[capacity] : Arrays.copyOf(ay, capacity);
+		mass = mass == null ? new float[capacity] : Arrays.copyOf(mass, capacity);
+		radius = radius == null ? new float[capacity] : Arrays.copyOf(radius, capacity);
+	}
+	
+	public int size() {
+		return size;
+	}
+	
+	public int capacity() {
+		return x.length;
+	}
+	
+	public void ensureCapacity(int capacity) {
+		if(capacity > x.length)
+			allocate(Math.max(capacity, x.length*2));
+	}
+	
+	/**
+	 * Adds a particle, its previous position is its position and its
+	 * acceleration is 0.
+	 *
+	 * @return the index of the new particle
+	 */
+	public int add(float x, float y, float vx, float vy, float mass, float radius) {
+		ensureCapacity(size+1);
+		int i = size++;
+		this.x[i] = this.px[i] = x;
+		this.y[i] = this.py[i] = y;
+		this.vx[i] = vx;
+		this.vy[i] = vy;
+		this.ax[i] = this.ay[i] = 0;
+		this.mass[i] = mass;
+		this.radius[i] = radius;
+		return i;
+	}
+	
+	/** Removes the i-th particle by moving the last particle in its place */
+	public void swapRemove(int i) {
+		Objects.checkIndex(i, size);
+		int last = --size;
+		x[i] = x[last];
+		y[i] = y[last];
+		px[i] = px[last];
+		py[i] = py[last];
+		vx[i] = vx[last];
+		vy[i] = vy[last];
+		ax[i] = ax[last];
+		ay[i] = ay[last];
+		mass[i] = mass[last];
+		radius[i] = radius[last];
+	}
+	
+	public void clear() {
+		size = 0;
+	}
+	
+	/** Copies the content of another buffer in this one, reusing this buffer's arrays when possible */
+	public void copyFrom(ParticleBuffer other) {
+		ensureCapacity(other.size);
+		int n = other.size;
+		System.arraycopy(other.x, 0, x, 0, n);
+		System.arraycopy(other.y, 0, y, 0, n);
+		System.arraycopy(other.px, 0, px, 0, n);
+		System.arraycopy(other.py, 0, py, 0, n);
+		System.arraycopy(other.vx, 0, vx, 0, n);
+		System.arraycopy(other.vy, 0, vy, 0, n);
+		System.arraycopy(other.ax, 0, ax, 0, n);
+		System.arraycopy(other.ay, 0, ay, 0, n);
+		System.arraycopy(other.mass, 0, mass, 0, n);
+		System.arraycopy(other.radius, 0, radius, 0, n);
+		size = n;
+	}
+	
+	/* ------------------ Bulk operations -------------------- */
+	
+	/** Copies the positions into the previous positions */
+	public void savePositions() {
+		System.arraycopy(x, 0, px, 0, size);
+		System.arraycopy(y, 0, py, 0, size);
+	}
+	
+	/** Sets every acceleration to (ax,ay) */
+	public void setAccelerations(float ax, float ay) {
+		Arrays.fill(this.ax, 0, size, ax);
+		Arrays.fill(this.ay, 0, size, ay);
+	}
+	
+	/**
+	 * Semi-implicit euler step, {@code v += a*dt} then {@code x += v*dt}.
+	 * The previous positions are not modified.
+	 */
+	public void integrateEuler(float dt) {
+		axpy(dt, ax, vx, size);
+		axpy(dt, ay, vy, size);
+		axpy(dt, vx, x, size);
+		axpy(dt, vy, y, size);
+	}
+	
+	/**
+	 * Verlet step, {@code x' = 2x - px + a*dt*dt} and the previous positions
+	 * become the current ones. Velocities are not used nor updated.
+	 */
+	public void integrateVerlet(float dt) {
+		float dt2 = dt*dt;
+		for(int i = 0; i < size; i++) {
+			float nx = 2*x[i] - px[i] + ax[i]*dt2;
+			float ny = 2*y[i] - py[i] + ay[i]*dt2;
+			px[i] = x[i];
+			py[i] = y[i];
+			x[i] = nx;
+			y[i] = ny;
+		}
+	}
+	
+	/**
+	 * Moves the particles that are not entirely inside the given circle
+	 * toward its center until they are.
+	 */
+	public void clampToCircle(float cx, float cy, float r) {
+		for(int i = 0; i < size; i++) {
+			float dx = x[i]-cx, dy = y[i]-cy;
+			float max = r-radius[i];
+			float l2 = dx*dx + dy*dy;
+			if(l2 > max*max) {
+				float f = max / (float) Math.sqrt(l2);
+				x[i] = cx + dx*f;
+				y[i] = cy + dy*f;
+			}
+		}
+	}
+	
+	/** Multiplies the first n values of an array by f */
+	public static void scale(float[] a, float f, int n) {
+		for(int i = 0; i < n; i++)
+			a[i] *= f;
+	}
+	
+	/** {@code y += a*x} over the first n values */
+	public static void axpy(float a, float[] x, float[] y, int n) {
+		for(int i = 0; i < n; i++)
+			y[i] += a*x[i];
+	}
+
+}
@@ -1,11 +1,12 @@
 package fr.wonder.pspc;
 
+import java.awt.AlphaComposite;
 import java.awt.BasicStroke;
+import java.awt.Canvas;
 import java.awt.Color;
 import java.awt.Dimension;
 import java.awt.Font;
 import java.awt.FontMetrics;
-import java.awt.Graphics;
 import java.awt.Graphics2D;
 import java.awt.RenderingHints;
 import java.awt.Toolkit;
@@ -17,15 +18,34 @@ import java.awt.event.MouseAdapter;
 import java.awt.event.MouseEvent;
 import java.awt.event.MouseMotionAdapter;
 import java.awt.event.WindowEvent;
+import java.awt.geom.AffineTransform;
+import java.awt.geom.Ellipse2D;
+import java.awt.geom.Line2D;
+import java.awt.geom.Path2D;
+import java.awt.geom.Rectangle2D;
+import java.awt.image.BufferStrategy;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.Map;
 import java.util.Objects;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.IntConsumer;
 
+import javax.imageio.ImageIO;
 import javax.swing.JFrame;
-import javax.swing.JPanel;
 
 import fr.wonder.pspc.SketchGraph.Graph;
+import fr.wonder.pspc.SketchMath.Affine2;
+import fr.wonder.pspc.SketchMath.FunctionPlot;
 import fr.wonder.pspc.SketchGraph.Node;
 
 /**
@@ -55,11 +75,45 @@ public abstract class Sketch {
 	public boolean mousePressed;
 	/** Globally readable but not writable (changing it will do nothing) */
 	public float framerate;
-	
-	private long frameDelta;
+	/**
+	 * The ARGB pixels of the canvas, row by row ({@code pixels[x+y*canvasWidth()]}),
+	 * only available after {@link #loadPixels()} was called in the current frame.
+	 */
+	public int[] pixels;
+	/**
+	 * How far the current frame is between the last simulation update and
+	 * the next one, in [0,1], see {@link #setUpdateRate(float)}.
+	 * Globally readable but not writable.
+	 */
+	public float updateAlpha;
+	
+	/** Time spent busy-waiting at the end of a frame wait, see {@link #waitNextFrame(long)} */
+	private static final long SPIN_NANOS = 1_000_000L;
+	
+	/** Target duration of a frame, 0 when uncapped */
+	private long frameDeltaNanos;
+	/** Duration of a simulation step, 0 when the sketch does not use update() */
+	private long updateDeltaNanos;
+	/** Maximum number of simulation steps the simulation thread can be late by before it skips them */
+	private static final int MAX_UPDATE_LAG = 10;
+	/** Held while update() runs, and while the render thread runs input callbacks and snapshot() */
+	private final Object simulationLock = new Object();
+	/** Scheduled time of the last simulation step, simulated time in headless runs */
+	private long lastUpdateNanos;
+	private volatile boolean running;
+	/** True when running with startHeadless, failures are then rethrown instead of exiting */
+	private boolean headless;
 	
 	private JFrame jframe;
-	private JPanel canvas;
+	private Canvas canvas;
+	private BufferStrategy bufferStrategy;
+	private BufferedImage canvasImage;
+	/** size of the canvas image, winWidth and winHeight can change during a frame when the window is resized */
+	private int canvasWidth, canvasHeight;
+	private final Queue<Runnable> pendingEvents = new ConcurrentLinkedQueue<>();
+	private final FrameTimings frameTimings = new FrameTimings();
+	private boolean showPerformanceOverlay;
+	private volatile FrameRecorder recorder;
 	
 	private Graphics2D graphics;
 	
@@ -68,6 +122,30 @@ public abstract class Sketch {
 					clearColor = Color.black;
 	
 	private float strokeWidth = 1;
+	private Color appliedColor;
+	private BasicStroke appliedStroke;
+	private final BasicStroke[] strokeCache = new BasicStroke[64];
+	private boolean antialiasing = true, strokePure, subpixelPrecision;
+	private static final AffineTransform IDENTITY = new AffineTransform();
+	/** Radius on screen under which the filled circles of batches are written directly to the pixels */
+	private static final float SMALL_CIRCLE_PIXELS = 6;
+	private static final int MAX_MATRIX_DEPTH = 64;
+	private final AffineTransform currentTransform = new AffineTransform();
+	private final AffineTransform[] transformStack = new AffineTransform[MAX_MATRIX_DEPTH];
+	private int transformDepth;
+	/** True when the current transform is not the identity, shapes then always keep float coordinates */
+	private boolean transformed;
+	private final Rectangle2D.Float rectShape = new Rectangle2D.Float();
+	private final Ellipse2D.Float ellipseShape = new Ellipse2D.Float();
+	private final Line2D.Float lineShape = new Line2D.Float();
+	private final Path2D.Float batchPath = new Path2D.Float();
+	private final Path2D.Float shapePath = new Path2D.Float();
+	private int shapeVertexCount;
+	private float[] interpolatedX = new float[0], interpolatedY = new float[0];
+	private boolean shapeStarted;
+	private static final int MAX_CACHED_PLOTS = 32;
+	private final Map<FloatUnaryOperator, CachedPlot> plots = new IdentityHashMap<>();
+	private final Affine2 plotView = new Affine2();
 	private Font defaultFont;
 	private final Map<Integer, Font> derivedFonts = new HashMap<>();
 	
@@ -78,6 +156,7 @@ public abstract class Sketch {
 		
 		this.jframe = new JFrame(getClass().getSimpleName());
 		jframe.setDefaultCloseOperation(JFrame.DISPOSE_ON_CLOSE);
+		jframe.setIgnoreRepaint(true);
 		jframe.addComponentListener(new ComponentAdapter() {
 			public void componentResized(ComponentEvent e) {
 				int w = jframe.getContentPane().getWidth();
@@ -87,38 +166,22 @@ public abstract class Sketch {
 				setWinSize(w, h);
 			}
 		});
-		this.defaultFont = new Font("Courier New", Font.PLAIN, 12);
-		derivedFonts.put(defaultFont.getSize(), defaultFont);
-		
-		this.canvas = new JPanel() {
-			private static final long serialVersionUID = -5345971935323546584L;
-			@Override
-			public void update(Graphics g) {
-				if(isShowing()) paint(g);
-			}
-			@Override
-			public void paint(Graphics g) {
-				Sketch.this.graphics = (Graphics2D) g;
-				graphics.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
-				frame++;
-				try {
-					if(frame == 1)
-						Sketch.this.firstDraw();
-					Sketch.this.draw();
-				} catch (Throwable t) {
-					terminate(t, getClass().getName());
-				}
-			}
-		};
+		this.canvas = new Canvas();
+		canvas.setIgnoreRepaint(true);
+		// input callbacks are forwarded to the render thread, sketches
+		// never have to synchronize with the EDT
 		KeyAdapter keyAdapter = new KeyAdapter() {
 			public void keyPressed(KeyEvent e) {
-				if(e.getKeyCode() == KeyEvent.VK_ESCAPE)
+				if(e.getKeyCode() == KeyEvent.VK_ESCAPE) {
 					terminate(null, null);
-				else
-					Sketch.this.keyPressed(e.getKeyChar());
+				} else {
+					char key = e.getKeyChar();
+					pendingEvents.add(() -> Sketch.this.keyPressed(key));
+				}
 			}
 			public void keyReleased(KeyEvent e) {
-				Sketch.this.keyReleased(e.getKeyChar());
+				char key = e.getKeyChar();
+				pendingEvents.add(() -> Sketch.this.keyReleased(key));
 			}
 		};
 		canvas.addKeyListener(keyAdapter);
@@ -126,51 +189,302 @@ public abstract class Sketch {
 		canvas.addMouseListener(new MouseAdapter() {
 			public void mousePressed(MouseEvent e) {
 				Sketch.this.mousePressed = true;
-				Sketch.this.mousePressed(e.getButton());
+				int button = e.getButton();
+				pendingEvents.add(() -> Sketch.this.mousePressed(button));
 			}
 			public void mouseReleased(MouseEvent e) {
 				Sketch.this.mousePressed = false;
-				Sketch.this.mouseReleased(e.getButton());
+				int button = e.getButton();
+				pendingEvents.add(() -> Sketch.this.mouseReleased(button));
 			}
 		});
 		canvas.addMouseMotionListener(new MouseMotionAdapter() {
 			public void mouseMoved(MouseEvent e) { mouseX = e.getX(); mouseY = e.getY(); }
 			public void mouseDragged(MouseEvent e) { mouseMoved(e); }
 		});
-		setWinSize(100, 100);
 		jframe.add(canvas);
-		setFramerate(60f);
 		
-		try {
-			this.setup();
-		} catch (Throwable t) {
-			terminate(t, Sketch.class.getName());
+		if(!initSketch())
 			return;
-		}
 		
 		jframe.setVisible(true);
-		canvas.grabFocus();
+		canvas.createBufferStrategy(2);
+		this.bufferStrategy = canvas.getBufferStrategy();
+		canvas.requestFocus();
 		
-		long lastFPSMillis = System.currentTimeMillis();
+		running = true;
+		if(updateDeltaNanos != 0) {
+			lastUpdateNanos = System.nanoTime();
+			Thread simulationThread = new Thread(this::runSimulation, getClass().getSimpleName() + " simulation");
+			simulationThread.setDaemon(true);
+			simulationThread.start();
+		}
+		
+		long nextFrame = System.nanoTime();
+		long lastFPSNanos = nextFrame;
 		int frameCounter = 0;
 		while(jframe.isShowing()) {
-			long nextMillis = System.currentTimeMillis() + frameDelta;
-			canvas.repaint();
+			long drawStart = System.nanoTime();
+			renderFrame();
+			long presentStart = System.nanoTime();
+			presentFrame();
+			long now = System.nanoTime();
 			frameCounter++;
-			long millis = System.currentTimeMillis();
-			long sleepTime = nextMillis - millis;
-			if(sleepTime > 0)
-				try { Thread.sleep(sleepTime); } catch (InterruptedException x) { }
-			if(millis - lastFPSMillis > 1000) {
-				long fpsDelta = millis-lastFPSMillis;
-				jframe.setTitle(getClass().getSimpleName() + " " + frameCounter*1000/fpsDelta + " fps");
-				lastFPSMillis = millis;
+			if(now - lastFPSNanos > 1_000_000_000L) {
+				long fpsDelta = now - lastFPSNanos;
+				jframe.setTitle(getClass().getSimpleName() + " " + frameCounter*1_000_000_000L/fpsDelta + " fps");
+				lastFPSNanos = now;
 				frameCounter = 0;
 			}
+			nextFrame = waitNextFrame(nextFrame);
+			frameTimings.record(presentStart-drawStart, now-presentStart, System.nanoTime()-now);
+		}
+		running = false;
+		stopRecording();
+	}
+	
+	/**
+	 * Loop of the simulation thread, calls update() at a fixed rate. If the
+	 * simulation falls behind the steps are run back to back to catch up,
+	 * unless it is more than {@link #MAX_UPDATE_LAG} steps late.
+	 */
+	private void runSimulation() {
+		useRandomStream(SIMULATION_RANDOM_STREAM);
+		THREAD_SKETCH.set(this);
+		float dt = updateDeltaNanos/1e9f;
+		long next = lastUpdateNanos + updateDeltaNanos;
+		while(running) {
+			long now = System.nanoTime();
+			if(next - now > 0) {
+				LockSupport.parkNanos(next - now);
+				continue;
+			}
+			synchronized (simulationLock) {
+				try {
+					this.update(dt);
+				} catch (Throwable t) {
+					terminate(t, Sketch.class.getName());
+				}
+				lastUpdateNanos = next;
+			}
+			next += updateDeltaNanos;
+			if(now - next > MAX_UPDATE_LAG*updateDeltaNanos)
+				next = now;
+		}
+	}
+	
+	/**
+	 * Runs the simulation steps that fall in the current frame of a headless
+	 * run, time is simulated using the target framerate so headless runs
+	 * are deterministic.
+	 */
+	private void updateHeadless() {
+		float dt = updateDeltaNanos/1e9f;
+		long frameNanos = frameDeltaNanos == 0 ? updateDeltaNanos : frameDeltaNanos;
+		long now = frame*frameNanos;
+		while(now - lastUpdateNanos >= updateDeltaNanos) {
+			try {
+				this.update(dt);
+			} catch (Throwable t) {
+				terminate(t, Sketch.class.getName());
+			}
+			lastUpdateNanos += updateDeltaNanos;
+		}
+		updateAlpha = (now-lastUpdateNanos)/(float)updateDeltaNanos;
+	}
+	
+	/**
+	 * Runs the sketch without any window, {@code draw()} renders into an
+	 * offscreen image and frames are drawn as fast as possible. The sketch
+	 * still sees the framerate set by {@link #setFramerate(float)} so time
+	 * based animations behave as if they ran at that (simulated) rate.<br>
+	 * This method can be used on machines without a display, it does not
+	 * require {@code java.awt.headless} to be set but works with it.
+	 * 
+	 * @param frames the number of frames to draw
+	 * @param inputScript called before each frame with the index of the frame
+	 *        that is about to be drawn (starting at 1), it can move the mouse
+	 *        and send events using the {@code simulateXX} methods
+	 * @return the image of the last frame, null if no frame was drawn
+	 * @throws RuntimeException anything thrown by the sketch callbacks is
+	 *         rethrown (wrapped if checked), the JVM is not exited
+	 */
+	public final BufferedImage startHeadless(int frames, IntConsumer inputScript) {
+		if(frames < 0)
+			throw new IllegalArgumentException("Negative frame count");
+		this.headless = true;
+		initSketch();
+		for(int i = 0; i < frames; i++) {
+			inputScript.accept(frame+1);
+			long drawStart = System.nanoTime();
+			renderFrame();
+			frameTimings.record(System.nanoTime()-drawStart, 0, 0);
+		}
+		stopRecording();
+		return canvasImage;
+	}
+	
+	/** Runs the sketch without any window, see {@link #startHeadless(int, IntConsumer)} */
+	public final BufferedImage startHeadless(int frames) {
+		return startHeadless(frames, f -> {});
+	}
+	
+	/**
+	 * Runs the sketch without any window and saves the last frame to a png file,
+	 * see {@link #startHeadless(int, IntConsumer)}
+	 */
+	public final void startHeadless(int frames, File output) throws IOException {
+		BufferedImage image = startHeadless(frames);
+		// there is no image when 0 frames were drawn
+		if(image != null)
+			ImageIO.write(image, "png", output);
+	}
+	
+	/** Sets the defaults shared by windowed and headless runs and calls setup, returns false if setup failed */
+	private boolean initSketch() {
+		useRandomStream(RENDER_RANDOM_STREAM);
+		THREAD_SKETCH.set(this);
+		this.defaultFont = new Font("Courier New", Font.PLAIN, 12);
+		derivedFonts.put(defaultFont.getSize(), defaultFont);
+		setWinSize(100, 100);
+		setFramerate(60f);
+		
+		try {
+			this.setup();
+		} catch (Throwable t) {
+			terminate(t, Sketch.class.getName());
+			return false;
+		}
+		return true;
+	}
+	
+	/**
+	 * Runs pending input callbacks, takes the simulation snapshot if the
+	 * sketch uses update() then draws one frame in the backing image
+	 */
+	private void renderFrame() {
+		ensureCanvasImage();
+		synchronized (simulationLock) {
+			for(Runnable event; (event = pendingEvents.poll()) != null; ) {
+				try {
+					event.run();
+				} catch (Throwable t) {
+					terminate(t, Sketch.class.getName());
+				}
+			}
+			if(updateDeltaNanos != 0) {
+				if(jframe == null)
+					updateHeadless();
+				else
+					updateAlpha = Math.min(1, (System.nanoTime()-lastUpdateNanos)/(float)updateDeltaNanos);
+				try {
+					this.snapshot();
+				} catch (Throwable t) {
+					terminate(t, Sketch.class.getName());
+				}
+			}
+		}
+		frame++;
+		resetMatrix();
+		try {
+			if(frame == 1)
+				this.firstDraw();
+			this.draw();
+		} catch (Throwable t) {
+			terminate(t, Sketch.class.getName());
+		}
+		FrameRecorder recorder = this.recorder;
+		if(recorder != null)
+			recorder.submit(((DataBufferInt) canvasImage.getRaster().getDataBuffer()).getData(), canvasWidth, canvasHeight);
+	}
+	
+	/**
+	 * (Re)creates the image sketches draw into when the window size changed.
+	 * Frames are drawn into a persistent image rather than directly into the
+	 * buffer strategy so that sketches which do not clear the whole canvas
+	 * (trails, translucent clears...) keep their previous content.
+	 */
+	private void ensureCanvasImage() {
+		int width = winWidth, height = winHeight;
+		if(canvasImage != null && canvasWidth == width && canvasHeight == height)
+			return;
+		BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+		Graphics2D g = image.createGraphics();
+		g.setColor(Color.black);
+		g.fillRect(0, 0, width, height);
+		if(canvasImage != null) {
+			g.drawImage(canvasImage, 0, 0, null);
+			graphics.dispose();
+		}
+		this.canvasImage = image;
+		this.canvasWidth = width;
+		this.canvasHeight = height;
+		this.graphics = g;
+		this.pixels = null;
+		this.appliedColor = null;
+		this.appliedStroke = null;
+		applyQualityHints();
+		applyTransform();
+	}
+	
+	/** Copies the backing image to the screen through the buffer strategy */
+	private void presentFrame() {
+		do {
+			do {
+				if(!canvas.isDisplayable())
+					return;
+				Graphics2D g = (Graphics2D) bufferStrategy.getDrawGraphics();
+				// the canvas alpha channel is meaningless on screen, ignore it
+				g.setComposite(AlphaComposite.Src);
+				g.drawImage(canvasImage, 0, 0, null);
+				g.setComposite(AlphaComposite.SrcOver);
+				if(showPerformanceOverlay)
+					frameTimings.drawOverlay(g, frameDeltaNanos/1e6f);
+				g.dispose();
+			} while(bufferStrategy.contentsRestored());
+			bufferStrategy.show();
+		} while(bufferStrategy.contentsLost());
+		Toolkit.getDefaultToolkit().sync();
+	}
+	
+	/**
+	 * Waits for the given frame deadline and returns the next one.<br>
+	 * The thread is parked for most of the wait and spins for the last
+	 * {@link #SPIN_NANOS} because parking alone wakes up too late on most
+	 * systems. Deadlines are accumulated rather than computed from the
+	 * current time so that the average framerate matches the requested
+	 * one, unless the sketch fell behind by more than a frame, in which
+	 * case the lost frames are not caught up.
+	 */
+	private long waitNextFrame(long deadline) {
+		if(frameDeltaNanos == 0)
+			return System.nanoTime();
+		deadline += frameDeltaNanos;
+		long now = System.nanoTime();
+		if(now - deadline > frameDeltaNanos)
+			return now;
+		while(deadline - now > SPIN_NANOS) {
+			LockSupport.parkNanos(deadline - now - SPIN_NANOS);
+			now = System.nanoTime();
 		}
+		while(deadline - System.nanoTime() > 0)
+			Thread.onSpinWait();
+		return deadline;
 	}
 	
+	/**
+	 * Stops the sketch after a failure (or ESC), windowed runs exit the JVM
+	 * while headless runs rethrow the failure to the caller of startHeadless.
+	 */
 	private final void terminate(Throwable t, String className) {
+		if(headless) {
+			stopRecording();
+			if(t instanceof RuntimeException)
+				throw (RuntimeException) t;
+			if(t instanceof Error)
+				throw (Error) t;
+			throw new RuntimeException(t);
+		}
 		if(t != null) {
 			StackTraceElement[] trace = t.getStackTrace();
 			int i = 0;
@@ -178,7 +492,12 @@ public abstract class Sketch {
 			t.setStackTrace(Arrays.copyOfRange(trace, 0, i));
 			t.printStackTrace();
 		}
-		jframe.dispatchEvent(new WindowEvent(jframe, WindowEvent.WINDOW_CLOSING));
+		// flush the frames already recorded before exiting
+		FrameRecorder recorder = this.recorder;
+		if(recorder != null)
+			recorder.stop();
+		if(jframe != null)
+			jframe.dispatchEvent(new WindowEvent(jframe, WindowEvent.WINDOW_CLOSING));
 		System.exit(1);
 	}
 	
@@ -187,6 +506,19 @@ public abstract class Sketch {
 	public abstract void setup();
 	public void firstDraw() {}
 	public abstract void draw();
+	/**
+	 * Called at a fixed rate on the simulation thread once an update rate
+	 * is set, see {@link #setUpdateRate(float)}.
+	 * 
+	 * @param dt the duration of a step in seconds, always the same
+	 */
+	public void update(float dt) {}
+	/**
+	 * Called on the render thread before each draw when an update rate is
+	 * set, while no update is running. Sketches should copy the state they
+	 * draw here so that draw() can run concurrently with update().
+	 */
+	public void snapshot() {}
 	public void keyPressed(char key) {}
 	public void keyReleased(char key) {}
 	public void mousePressed(int button) {}
@@ -199,29 +531,161 @@ public abstract class Sketch {
 			throw new IllegalArgumentException("Negative size");
 		this.winWidth = width;
 		this.winHeight = height;
+		if(jframe == null)
+			return;
 		canvas.setPreferredSize(new Dimension(width, height));
 		jframe.pack();
 	}
 	
 	public final void setResizable(boolean resizable) {
-		jframe.setResizable(resizable);
+		if(jframe != null)
+			jframe.setResizable(resizable);
+	}
+	
+	/*
+	 * Quality settings, they can be changed at any time (in setup or draw)
+	 * and apply to everything drawn afterward.
+	 */
+	
+	/** Enables or disables antialiasing, enabled by default */
+	public final void setAntialiasing(boolean antialiasing) {
+		this.antialiasing = antialiasing;
+		applyQualityHints();
+	}
+	
+	/**
+	 * When enabled strokes are rendered exactly where their geometry lies
+	 * instead of being normalized (snapped) to pixels, which is slightly
+	 * slower. Disabled by default.
+	 */
+	public final void setStrokePure(boolean pure) {
+		this.strokePure = pure;
+		applyQualityHints();
+	}
+	
+	/**
+	 * When enabled shapes keep their floating point coordinates instead
+	 * of being truncated to whole pixels, slow moving shapes then move
+	 * smoothly. Best used with antialiasing and pure strokes. Disabled
+	 * by default.
+	 */
+	public final void setSubpixelPrecision(boolean subpixel) {
+		this.subpixelPrecision = subpixel;
 	}
 	
+	private void applyQualityHints() {
+		if(graphics == null)
+			return;
+		graphics.setRenderingHint(RenderingHints.KEY_ANTIALIASING, antialiasing ?
+				RenderingHints.VALUE_ANTIALIAS_ON : RenderingHints.VALUE_ANTIALIAS_OFF);
+		graphics.setRenderingHint(RenderingHints.KEY_STROKE_CONTROL, strokePure ?
+				RenderingHints.VALUE_STROKE_PURE : RenderingHints.VALUE_STROKE_DEFAULT);
+	}
+	
+	/** Sets the target framerate, a value of 0 or less does not limit the framerate */
 	public final void setFramerate(float fps) {
 		this.framerate = max(0, fps);
 		if(fps <= 0)
-			this.frameDelta = Long.MAX_VALUE;
+			this.frameDeltaNanos = 0;
+		else
+			this.frameDeltaNanos = (long) (1_000_000_000L/fps);
+	}
+	
+	/**
+	 * Makes update() be called {@code ups} times per second on a separate
+	 * simulation thread, independently of the framerate. This must be
+	 * called in setup, 0 or less disables updates (the default).<br>
+	 * Input callbacks and snapshot() never run concurrently with update(),
+	 * draw() does and should only use the state copied in snapshot(),
+	 * interpolated with {@link #updateAlpha}.
+	 */
+	public final void setUpdateRate(float ups) {
+		if(ups <= 0)
+			this.updateDeltaNanos = 0;
 		else
-			this.frameDelta = (long) (1000/fps);
+			this.updateDeltaNanos = (long) (1_000_000_000L/ups);
 	}
 	
-	/** @deprecated causes the canvas to flicker */
-	@Deprecated
 	public final void setFramerateUnlimited() {
-		this.frameDelta = 0;
+		this.frameDeltaNanos = 0;
 		this.framerate = Integer.MAX_VALUE;
 	}
 	
+	/**
+	 * Shows a graph of the recent frame times over the canvas, the overlay is
+	 * drawn on screen only, it does not appear in the canvas image.
+	 */
+	public final void setPerformanceOverlay(boolean show) {
+		this.showPerformanceOverlay = show;
+	}
+	
+	/* ------------------ Recording -------------------- */
+	
+	/**
+	 * Starts recording the frames drawn from now on, stopping any previous
+	 * recording. Frames are written by a background thread, if it cannot
+	 * keep up frames are handled according to the given policy.<br>
+	 * The recording stops with {@link #stopRecording()} or when the sketch
+	 * stops, frames with a size different from the current window size are
+	 * dropped.
+	 * 
+	 * @param path the directory of a png sequence or the file of a raw recording
+	 * @throws UncheckedIOException if the output cannot be created
+	 */
+	public final FrameRecorder record(String path, FrameRecorder.Format format, FrameRecorder.Policy policy) {
+		stopRecording();
+		try {
+			this.recorder = new FrameRecorder(new File(path), format, policy, winWidth, winHeight);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		return recorder;
+	}
+	
+	/** Starts recording, dropping frames rather than waiting for disk writes */
+	public final FrameRecorder record(String path, FrameRecorder.Format format) {
+		return record(path, format, FrameRecorder.Policy.DROP);
+	}
+	
+	/** Waits for the current recording to be written and stops it, does nothing if the sketch is not recording */
+	public final void stopRecording() {
+		FrameRecorder recorder = this.recorder;
+		if(recorder == null)
+			return;
+		recorder.stop();
+		this.recorder = null;
+	}
+	
+	/* ------------------ Input -------------------- */
+	
+	/*
+	 * These methods are meant to script the input of headless runs but they
+	 * work in windowed runs too. Callbacks are run before the next frame.
+	 */
+	
+	public final void simulateMouseMove(int x, int y) {
+		this.mouseX = x;
+		this.mouseY = y;
+	}
+	
+	public final void simulateMousePressed(int button) {
+		this.mousePressed = true;
+		pendingEvents.add(() -> mousePressed(button));
+	}
+	
+	public final void simulateMouseReleased(int button) {
+		this.mousePressed = false;
+		pendingEvents.add(() -> mouseReleased(button));
+	}
+	
+	public final void simulateKeyPressed(char key) {
+		pendingEvents.add(() -> keyPressed(key));
+	}
+	
+	public final void simulateKeyReleased(char key) {
+		pendingEvents.add(() -> keyReleased(key));
+	}
+	
 	/* ------------------ Utility ------------------- */
 
 	public Vec2 mousePos() {
@@ -243,7 +707,8 @@ public abstract class Sketch {
 	}
 	
 	public final void fill(int r, int g, int b, int a) {
-		this.fillColor = new Color(r, g, b, a);
+		if(fillColor == null || !isColor(fillColor, r, g, b, a))
+			this.fillColor = new Color(r, g, b, a);
 	}
 	
 	public final void noFill() {
@@ -259,7 +724,8 @@ public abstract class Sketch {
 	}
 	
 	public final void stroke(int r, int g, int b, int a) {
-		this.strokeColor = new Color(r, g, b, a);
+		if(!isColor(strokeColor, r, g, b, a))
+			this.strokeColor = new Color(r, g, b, a);
 	}
 	
 	public final void strokeWidth(float width) {
@@ -272,53 +738,306 @@ public abstract class Sketch {
 		this.strokeWidth = 0;
 	}
 	
+	private static boolean isColor(Color c, int r, int g, int b, int a) {
+		return c.getRGB() == ((a & 0xff) << 24 | (r & 0xff) << 16 | (g & 0xff) << 8 | (b & 0xff));
+	}
+	
 	private final boolean beginFill() {
 		if(fillColor != null)
-			graphics.setColor(fillColor);
+			applyColor(fillColor);
 		return fillColor != null;
 	}
 	
 	private final boolean beginStroke() {
 		if(strokeWidth > 0) {
-			graphics.setColor(strokeColor);
-			graphics.setStroke(new BasicStroke(strokeWidth));
+			applyColor(strokeColor);
+			applyStroke(strokeWidth);
 		}
 		return strokeWidth > 0;
 	}
 	
+	/*
+	 * Render state cache, the color and stroke last set on the graphics are
+	 * remembered so that setting them again is skipped, each change of the
+	 * Graphics2D state invalidates its rendering pipeline.
+	 */
+	
+	private final void applyColor(Color color) {
+		if(color == appliedColor || color.equals(appliedColor))
+			return;
+		graphics.setColor(color);
+		appliedColor = color;
+	}
+	
+	private final void applyStroke(float width) {
+		if(appliedStroke != null && appliedStroke.getLineWidth() == width)
+			return;
+		// strokes are cached in a small direct-mapped table by width, sketches
+		// rarely use more than a handful of widths
+		int slot = (Float.floatToIntBits(width) * 0x9E3779B9 >>> 26) & (strokeCache.length-1);
+		BasicStroke stroke = strokeCache[slot];
+		if(stroke == null || stroke.getLineWidth() != width)
+			strokeCache[slot] = stroke = new BasicStroke(width);
+		graphics.setStroke(stroke);
+		appliedStroke = stroke;
+	}
+	
 	public final void clearColor(Color color) {
 		this.clearColor = Objects.requireNonNull(color);
 	}
 	
 	public final void clear() {
-		graphics.setColor(clearColor);
-		graphics.fillRect(0, 0, winWidth, winHeight);
+		applyColor(clearColor);
+		if(transformed)
+			graphics.setTransform(IDENTITY);
+		graphics.fillRect(0, 0, canvasWidth, canvasHeight);
+		if(transformed)
+			graphics.setTransform(currentTransform);
 	}
 	
 	public final void rect(float x, float y, float width, float height) {
-		if(beginFill())
-			graphics.fillRect((int) x, (int) y, (int) width, (int) height);
-		if(beginStroke())
-			graphics.drawRect((int) x, (int) y, (int) width, (int) height);
+		if(subpixelPrecision || transformed) {
+			rectShape.setRect(x, y, width, height);
+			if(beginFill())
+				graphics.fill(rectShape);
+			if(beginStroke())
+				graphics.draw(rectShape);
+		} else {
+			if(beginFill())
+				graphics.fillRect((int) x, (int) y, (int) width, (int) height);
+			if(beginStroke())
+				graphics.drawRect((int) x, (int) y, (int) width, (int) height);
+		}
 	}
 	
 	public final void ellipse(float x, float y, float width, float height) {
 		if(beginFill())
-			graphics.fillOval((int) (x-width/2), (int) (y-height/2), (int) width, (int) height);
+			oval(true, x-width/2, y-height/2, width, height);
 		if(beginStroke())
-			graphics.drawOval((int) (x-width/2), (int) (y-height/2), (int) width, (int) height);
+			oval(false, x-width/2, y-height/2, width, height);
 	}
 	
 	public final void circle(float x, float y, float radius) {
 		if(beginFill())
-			graphics.fillOval((int) (x-radius), (int) (y-radius), (int) (radius*2), (int) (radius*2));
+			oval(true, x-radius, y-radius, radius*2, radius*2);
 		if(beginStroke())
-			graphics.drawOval((int) (x-radius), (int) (y-radius), (int) (radius*2), (int) (radius*2));
+			oval(false, x-radius, y-radius, radius*2, radius*2);
 	}
 
 	public final void line(float x1, float y1, float x2, float y2) {
-		if(beginStroke())
+		if(!beginStroke())
+			return;
+		if(subpixelPrecision || transformed) {
+			lineShape.setLine(x1, y1, x2, y2);
+			graphics.draw(lineShape);
+		} else {
 			graphics.drawLine((int) x1, (int) y1, (int) x2, (int) y2);
+		}
+	}
+	
+	/*
+	 * Transforms, they apply to everything drawn through the Graphics2D
+	 * (shapes, text...) but not to pixel accesses nor to clear(). The
+	 * transform is reset at the beginning of each frame.
+	 */
+	
+	/** Saves the current transform, restore it with {@link #popMatrix()} */
+	public final void pushMatrix() {
+		if(transformDepth == MAX_MATRIX_DEPTH)
+			throw new IllegalStateException("Too many pushMatrix() calls");
+		if(transformStack[transformDepth] == null)
+			transformStack[transformDepth] = new AffineTransform();
+		transformStack[transformDepth++].setTransform(currentTransform);
+	}
+	
+	public final void popMatrix() {
+		if(transformDepth == 0)
+			throw new IllegalStateException("popMatrix() without pushMatrix()");
+		currentTransform.setTransform(transformStack[--transformDepth]);
+		applyTransform();
+	}
+	
+	/** Resets the transform to the identity and empties the matrix stack */
+	public final void resetMatrix() {
+		transformDepth = 0;
+		currentTransform.setToIdentity();
+		applyTransform();
+	}
+	
+	public final void translate(float x, float y) {
+		currentTransform.translate(x, y);
+		applyTransform();
+	}
+	
+	public final void rotate(float angle) {
+		currentTransform.rotate(angle);
+		applyTransform();
+	}
+	
+	public final void scale(float s) {
+		scale(s, s);
+	}
+	
+	public final void scale(float sx, float sy) {
+		currentTransform.scale(sx, sy);
+		applyTransform();
+	}
+	
+	/**
+	 * Maps the given world rectangle to the whole canvas, x growing to the
+	 * right and y growing upward (ymin is at the bottom of the canvas).
+	 */
+	public final void viewport(float xmin, float xmax, float ymin, float ymax) {
+		viewport(xmin, xmax, ymin, ymax, 0);
+	}
+	
+	/**
+	 * Maps the given world rectangle to the canvas minus a margin on each
+	 * side, the margin being a fraction of the canvas size.
+	 */
+	public final void viewport(float xmin, float xmax, float ymin, float ymax, float margin) {
+		float sx = canvasWidth*(1-2*margin)/(xmax-xmin);
+		float sy = canvasHeight*(1-2*margin)/(ymax-ymin);
+		currentTransform.translate(canvasWidth*margin, canvasHeight*(1-margin));
+		currentTransform.scale(sx, -sy);
+		currentTransform.translate(-xmin, -ymin);
+		applyTransform();
+	}
+	
+	/**
+	 * Returns the size of a pixel in the current coordinate system, useful
+	 * to give strokes a constant width on screen.
+	 */
+	public final float pixelSize() {
+		return (float) (1/Math.sqrt(Math.abs(currentTransform.getDeterminant())));
+	}
+	
+	/**
+	 * Copies the current transform in the given affine transform, it maps
+	 * world coordinates to canvas pixels. This can be used to map points
+	 * before writing to {@link #pixels}.
+	 * 
+	 * @return out
+	 */
+	public final Affine2 getMatrix(Affine2 out) {
+		return out.set(
+				(float) currentTransform.getScaleX(), (float) currentTransform.getShearX(),
+				(float) currentTransform.getShearY(), (float) currentTransform.getScaleY(),
+				(float) currentTransform.getTranslateX(), (float) currentTransform.getTranslateY());
+	}
+	
+	private void applyTransform() {
+		transformed = !currentTransform.isIdentity();
+		if(graphics != null)
+			graphics.setTransform(currentTransform);
+	}
+	
+	/*
+	 * Shapes, vertices are collected in a single path that is drawn with
+	 * one fill and/or one stroke operation when the shape ends.
+	 */
+	
+	/** Starts a new shape, its vertices are added with {@link #vertex(float, float)} */
+	public final void beginShape() {
+		shapePath.reset();
+		shapeVertexCount = 0;
+		shapeStarted = true;
+	}
+	
+	public final void vertex(float x, float y) {
+		if(!shapeStarted)
+			throw new IllegalStateException("beginShape() was not called");
+		if(shapeVertexCount++ == 0)
+			shapePath.moveTo(x, y);
+		else
+			shapePath.lineTo(x, y);
+	}
+	
+	/**
+	 * Draws the current shape, it is filled if a fill color is set and
+	 * stroked if a stroke is set, use {@link #noFill()} to draw polylines.
+	 * 
+	 * @param close whether the last vertex should be joined to the first one
+	 */
+	public final void endShape(boolean close) {
+		if(!shapeStarted)
+			throw new IllegalStateException("beginShape() was not called");
+		shapeStarted = false;
+		if(shapeVertexCount < 2)
+			return;
+		if(close)
+			shapePath.closePath();
+		if(beginFill())
+			graphics.fill(shapePath);
+		if(beginStroke())
+			graphics.draw(shapePath);
+	}
+	
+	/*
+	 * Function plots, functions are sampled adaptively in screen space and
+	 * their samples are cached per function instance.
+	 */
+	
+	/**
+	 * Draws the graph of f over [xmin,xmax] with the stroke, as a single
+	 * path. The function is sampled as described in {@link FunctionPlot}
+	 * and its samples are kept until the range or the transform change, so
+	 * f must always return the same values, call {@link #invalidateFunctionPlots()}
+	 * when it does not. Keep f in a field rather than creating a lambda
+	 * each frame, the cache is looked up by instance.
+	 */
+	public final void plotFunction(FloatUnaryOperator f, float xmin, float xmax) {
+		if(!beginStroke())
+			return;
+		CachedPlot plot = plots.get(f);
+		if(plot == null) {
+			if(plots.size() == MAX_CACHED_PLOTS)
+				plots.clear();
+			plots.put(f, plot = new CachedPlot());
+		}
+		if(plot.samples.update(f, xmin, xmax, getMatrix(plotView), canvasHeight)) {
+			float[] xs = plot.samples.x(), ys = plot.samples.y();
+			boolean pieceStarted = false;
+			plot.path.reset();
+			for(int i = 0; i < plot.samples.size(); i++) {
+				if(Float.isNaN(xs[i])) {
+					pieceStarted = false;
+				} else if(pieceStarted) {
+					plot.path.lineTo(xs[i], ys[i]);
+				} else {
+					plot.path.moveTo(xs[i], ys[i]);
+					pieceStarted = true;
+				}
+			}
+		}
+		graphics.draw(plot.path);
+	}
+	
+	/** Forgets the samples of every plotted function, they are sampled again when next drawn */
+	public final void invalidateFunctionPlots() {
+		plots.clear();
+	}
+	
+	private static class CachedPlot {
+		
+		final FunctionPlot samples = new FunctionPlot();
+		final Path2D.Float path = new Path2D.Float();
+		
+	}
+	
+	/** Fills or strokes the oval bounded by the given rectangle, with or without sub-pixel precision */
+	private final void oval(boolean fill, float x, float y, float width, float height) {
+		if(subpixelPrecision || transformed) {
+			ellipseShape.setFrame(x, y, width, height);
+			if(fill)
+				graphics.fill(ellipseShape);
+			else
+				graphics.draw(ellipseShape);
+		} else if(fill) {
+			graphics.fillOval((int) x, (int) y, (int) width, (int) height);
+		} else {
+			graphics.drawOval((int) x, (int) y, (int) width, (int) height);
+		}
 	}
 	
 	public final void arrow(float x1, float y1, float x2, float y2) {
@@ -336,6 +1055,236 @@ public abstract class Sketch {
 		line(x-size, y+size, x+size, y-size);
 	}
 	
+	/*
+	 * Pixel access, pixels[] is the actual canvas storage so reading and
+	 * writing it is as cheap as array accesses. Java2D draws and direct
+	 * writes can be mixed freely within a frame.
+	 */
+	
+	/**
+	 * Makes {@link #pixels} available, it must be called again in each frame
+	 * in which pixels are accessed because the canvas storage changes when
+	 * the window is resized.
+	 */
+	public final void loadPixels() {
+		this.pixels = ((DataBufferInt) canvasImage.getRaster().getDataBuffer()).getData();
+	}
+	
+	/**
+	 * Returns the width of the canvas, the stride of {@link #pixels}. It only
+	 * changes between frames unlike winWidth which is updated as soon as the
+	 * window is resized.
+	 */
+	public final int canvasWidth() {
+		return canvasWidth;
+	}
+	
+	/** Returns the height of the canvas, it only changes between frames */
+	public final int canvasHeight() {
+		return canvasHeight;
+	}
+	
+	/**
+	 * Publishes the changes made to {@link #pixels}. Since the array is the
+	 * canvas storage this does nothing but it is kept for symmetry with
+	 * {@link #loadPixels()}, sketches should still call it after writing.
+	 */
+	public final void updatePixels() {
+		if(pixels == null)
+			throw new IllegalStateException("loadPixels() was not called");
+	}
+	
+	/** Sets the pixel at (x,y) to the given ARGB color, out of bounds pixels are ignored */
+	public final void plot(int x, int y, int argb) {
+		if(x < 0 || y < 0 || x >= canvasWidth || y >= canvasHeight)
+			return;
+		pixels[x+y*canvasWidth] = argb;
+	}
+	
+	/**
+	 * Adds the given RGB color to the pixel at (x,y), each channel saturates
+	 * at 255. Out of bounds pixels are ignored.
+	 */
+	public final void plotAdditive(int x, int y, int rgb) {
+		if(x < 0 || y < 0 || x >= canvasWidth || y >= canvasHeight)
+			return;
+		int i = x+y*canvasWidth;
+		int p = pixels[i];
+		int r = Math.min(255, ((p >> 16) & 0xff) + ((rgb >> 16) & 0xff));
+		int g = Math.min(255, ((p >>  8) & 0xff) + ((rgb >>  8) & 0xff));
+		int b = Math.min(255, ( p        & 0xff) + ( rgb        & 0xff));
+		pixels[i] = 0xff000000 | r << 16 | g << 8 | b;
+	}
+	
+	/*
+	 * Batched primitives, the render state is set once per batch and all
+	 * fills are drawn before all strokes (instead of alternating per shape).
+	 */
+	
+	/**
+	 * Draws {@code count} circles, the i-th has center (xs[i],ys[i]) and radius radii[i].<br>
+	 * Filled circles smaller than {@link #SMALL_CIRCLE_PIXELS} on screen are
+	 * written directly to the canvas pixels when the fill is opaque and the
+	 * transform is a uniform scale and translation, Java2D spends most of
+	 * its time setting up each shape for such small ones.
+	 */
+	public final void circles(float[] xs, float[] ys, float[] radii, int count) {
+		checkBatch(count, xs, ys, radii);
+		if(beginFill()) {
+			float scale = directCircleScale();
+			for(int i = 0; i < count; i++)
+				fillCircle(xs[i], ys[i], radii[i], scale);
+		}
+		if(beginStroke()) {
+			for(int i = 0; i < count; i++) {
+				float r = radii[i];
+				oval(false, xs[i]-r, ys[i]-r, r*2, r*2);
+			}
+		}
+	}
+	
+	/** Draws {@code count} circles of the same radius */
+	public final void circles(float[] xs, float[] ys, float radius, int count) {
+		checkBatch(count, xs, ys);
+		float d = radius*2;
+		if(beginFill()) {
+			float scale = directCircleScale();
+			for(int i = 0; i < count; i++)
+				fillCircle(xs[i], ys[i], radius, scale);
+		}
+		if(beginStroke()) {
+			for(int i = 0; i < count; i++)
+				oval(false, xs[i]-radius, ys[i]-radius, d, d);
+		}
+	}
+	
+	/**
+	 * Returns the size of a world unit in pixels if filled circles can be
+	 * written directly to the canvas pixels, 0 if they must go through
+	 * Java2D. Loads the pixels when they can.
+	 */
+	private float directCircleScale() {
+		AffineTransform t = currentTransform;
+		if(fillColor.getAlpha() != 255 || t.getShearX() != 0 || t.getShearY() != 0 ||
+				Math.abs(t.getScaleX()) != Math.abs(t.getScaleY()))
+			return 0;
+		loadPixels();
+		return (float) Math.abs(t.getScaleX());
+	}
+	
+	private void fillCircle(float x, float y, float r, float scale) {
+		if(scale == 0 || r*scale > SMALL_CIRCLE_PIXELS) {
+			oval(true, x-r, y-r, r*2, r*2);
+			return;
+		}
+		AffineTransform t = currentTransform;
+		fillDisc((float) (t.getScaleX()*x + t.getTranslateX()), (float) (t.getScaleY()*y + t.getTranslateY()), r*scale, fillColor.getRGB());
+	}
+	
+	/** Writes a disc of device center (cx,cy) and radius r, edge pixels are blended by coverage when antialiasing */
+	private void fillDisc(float cx, float cy, float r, int argb) {
+		int x0 = Math.max(0, (int) Math.floor(cx-r)), x1 = Math.min(canvasWidth-1, (int) Math.floor(cx+r));
+		int y0 = Math.max(0, (int) Math.floor(cy-r)), y1 = Math.min(canvasHeight-1, (int) Math.floor(cy+r));
+		for(int y = y0; y <= y1; y++) {
+			float dy = y+.5f-cy;
+			for(int x = x0; x <= x1; x++) {
+				float dx = x+.5f-cx;
+				// approximate area of the pixel inside the disc
+				float coverage = r+.5f - (float) Math.sqrt(dx*dx + dy*dy);
+				if(!antialiasing)
+					coverage = coverage >= .5f ? 1 : 0;
+				if(coverage >= 1)
+					pixels[x+y*canvasWidth] = argb;
+				else if(coverage > 0)
+					plotBlended(x, y, (int) (coverage*255) << 24 | argb & 0xffffff);
+			}
+		}
+	}
+	
+	/** Draws the particles of a buffer as circles of their radius */
+	public final void particles(ParticleBuffer particles) {
+		circles(particles.x, particles.y, particles.radius, particles.size());
+	}
+	
+	/**
+	 * Draws the particles of a buffer as circles of their radius, at
+	 * {@code lerp(alpha, previous position, position)}. This can be used
+	 * with {@link #updateAlpha} to draw smoothly between two updates.
+	 */
+	public final void particles(ParticleBuffer particles, float alpha) {
+		int n = particles.size();
+		if(interpolatedX.length < n) {
+			interpolatedX = new float[particles.capacity()];
+			interpolatedY = new float[particles.capacity()];
+		}
+		for(int i = 0; i < n; i++) {
+			interpolatedX[i] = lerp(alpha, particles.px[i], particles.x[i]);
+			interpolatedY[i] = lerp(alpha, particles.py[i], particles.y[i]);
+		}
+		circles(interpolatedX, interpolatedY, particles.radius, n);
+	}
+	
+	/**
+	 * Draws {@code count} lines from (x1s[i],y1s[i]) to (x2s[i],y2s[i]).<br>
+	 * The lines are drawn as a single path with one stroke operation, so
+	 * translucent lines do not blend where they overlap.
+	 */
+	public final void lines(float[] x1s, float[] y1s, float[] x2s, float[] y2s, int count) {
+		checkBatch(count, x1s, y1s, x2s, y2s);
+		if(!beginStroke())
+			return;
+		batchPath.reset();
+		for(int i = 0; i < count; i++) {
+			batchPath.moveTo(x1s[i], y1s[i]);
+			batchPath.lineTo(x2s[i], y2s[i]);
+		}
+		graphics.draw(batchPath);
+	}
+	
+	/**
+	 * Draws {@code count} single pixel points with the fill color, points
+	 * go through the current transform but always cover one canvas pixel.
+	 * They are written directly to the canvas pixels, translucent colors
+	 * are blended over the existing pixels.
+	 */
+	public final void points(float[] xs, float[] ys, int count) {
+		checkBatch(count, xs, ys);
+		if(!beginFill())
+			return;
+		loadPixels();
+		int argb = fillColor.getRGB();
+		boolean opaque = fillColor.getAlpha() == 255;
+		// mapped by hand, drawing through the transform would fill squares of a world unit
+		double m00 = currentTransform.getScaleX(), m01 = currentTransform.getShearX(), tx = currentTransform.getTranslateX();
+		double m10 = currentTransform.getShearY(), m11 = currentTransform.getScaleY(), ty = currentTransform.getTranslateY();
+		for(int i = 0; i < count; i++) {
+			int x = (int) Math.floor(m00*xs[i] + m01*ys[i] + tx);
+			int y = (int) Math.floor(m10*xs[i] + m11*ys[i] + ty);
+			if(opaque)
+				plot(x, y, argb);
+			else
+				plotBlended(x, y, argb);
+		}
+	}
+	
+	/** Blends the given ARGB color over the pixel at (x,y), out of bounds pixels are ignored */
+	private void plotBlended(int x, int y, int argb) {
+		if(x < 0 || y < 0 || x >= canvasWidth || y >= canvasHeight)
+			return;
+		int i = x+y*canvasWidth;
+		int p = pixels[i];
+		int a = argb >>> 24;
+		int r = (((argb >> 16) & 0xff)*a + ((p >> 16) & 0xff)*(255-a)) / 255;
+		int g = (((argb >>  8) & 0xff)*a + ((p >>  8) & 0xff)*(255-a)) / 255;
+		int b = (( argb        & 0xff)*a + ( p        & 0xff)*(255-a)) / 255;
+		pixels[i] = 0xff000000 | r << 16 | g << 8 | b;
+	}
+	
+	private static void checkBatch(int count, float[]... arrays) {
+		for(float[] a : arrays)
+			Objects.checkFromIndexSize(0, count, a.length);
+	}
+	
 	public final void textSize(float size) {
 		graphics.setFont(derivedFonts.computeIfAbsent((int) size, s -> defaultFont.deriveFont(size)));
 	}
@@ -344,7 +1293,7 @@ public abstract class Sketch {
 		FontMetrics metrics = graphics.getFontMetrics();
 		x -= metrics.stringWidth(text)/2f;
 		y += metrics.getHeight()/4f;
-		graphics.setColor(Color.WHITE);
+		applyColor(Color.WHITE);
 		graphics.drawString(text, x, y);
 	}
 	
@@ -407,8 +1356,81 @@ public abstract class Sketch {
 		return f%1;
 	}
 	
+	/*
+	 * Random numbers, each thread has its own generator so that parallel
+	 * code does not contend on a shared one. The generator of a thread is
+	 * derived from the seed and the index of its stream: the render thread
+	 * uses stream 0 and the simulation thread stream 1, so sketch threads
+	 * are reproducible once randomSeed is called. Other threads get the
+	 * next indices in the order in which they first draw a number, parallel
+	 * workers should use randomStreams instead.
+	 */
+	
+	private static final int RENDER_RANDOM_STREAM = 0, SIMULATION_RANDOM_STREAM = 1;
+	private static final AtomicInteger nextRandomStream = new AtomicInteger(2);
+	/** written under the Sketch class lock, the generation last so that readers seeing it also see the seed */
+	private static volatile long randomSeed = FastRandom.mix64(System.nanoTime());
+	private static volatile int randomSeedGeneration;
+	private static final ThreadLocal<ThreadRandom> THREAD_RANDOM = ThreadLocal.withInitial(ThreadRandom::new);
+	
+	private static class ThreadRandom extends FastRandom {
+		
+		int stream = nextRandomStream.getAndIncrement();
+		int seedGeneration = -1;
+		
+		ThreadRandom() {
+			super(0);
+		}
+		
+	}
+	
+	private static FastRandom threadRandom() {
+		ThreadRandom r = THREAD_RANDOM.get();
+		int generation = randomSeedGeneration;
+		if(r.seedGeneration != generation) {
+			r.seedGeneration = generation;
+			r.setSeed(FastRandom.mix64(randomSeed + (r.stream+1)*0x9e3779b97f4a7c15L));
+		}
+		return r;
+	}
+	
+	/** Makes the current thread use the given stream, its generator is reseeded on the next draw */
+	private static void useRandomStream(int stream) {
+		ThreadRandom r = THREAD_RANDOM.get();
+		r.stream = stream;
+		r.seedGeneration = -1;
+	}
+	
+	/** Seeds the random generators of every thread, should be called in setup */
+	public static synchronized void randomSeed(long seed) {
+		randomSeed = seed;
+		randomSeedGeneration++;
+	}
+	
+	/**
+	 * Returns n independent generators derived from the seed, the i-th one
+	 * is always the same for a given seed so work split among workers is
+	 * reproducible as long as each part is always given the same stream.
+	 */
+	public static FastRandom[] randomStreams(long seed, int n) {
+		FastRandom[] streams = new FastRandom[n];
+		for(int i = 0; i < n; i++)
+			streams[i] = new FastRandom(FastRandom.mix64(seed + i*0x632be59bd9b4e019L));
+		return streams;
+	}
+	
+	/** Fills an array with random values in [0,1[ */
+	public static void fillRandom(float[] a) {
+		threadRandom().fill(a, 0, a.length, 0, 1);
+	}
+	
+	/** Fills an array with random values in [min,max[ */
+	public static void fillRandom(float[] a, float min, float max) {
+		threadRandom().fill(a, 0, a.length, min, max);
+	}
+	
 	public static float random() {
-		return (float) Math.random();
+		return threadRandom().nextFloat();
 	}
 	
 	public static float random(float min, float max) {
@@ -436,11 +1458,11 @@ public abstract class Sketch {
 	}
 	
 	public static float cos(float f) {
-		return (float) Math.cos(f);
+		return fastMath() ? fastCos(f) : (float) Math.cos(f);
 	}
 	
 	public static float sin(float f) {
-		return (float) Math.sin(f);
+		return fastMath() ? fastSin(f) : (float) Math.sin(f);
 	}
 	
 	public static float tan(float f) {
@@ -448,7 +1470,108 @@ public abstract class Sketch {
 	}
 	
 	public static float atan2(float x, float y) {
-		return (float) Math.atan2(x, y);
+		return fastMath() ? fastAtan2(x, y) : (float) Math.atan2(x, y);
+	}
+	
+	/*
+	 * Fast approximations, they can be called directly or used by sin, cos
+	 * and atan2 with setFastMath(true). sqrt is never approximated, the JVM
+	 * compiles Math.sqrt to a single instruction which no approximation beats.
+	 */
+	
+	/** The sketch running on the current thread, set for the render and simulation threads */
+	private static final ThreadLocal<Sketch> THREAD_SKETCH = new ThreadLocal<>();
+	private volatile boolean fastMath;
+	
+	private static final int SIN_TABLE_BITS = 12;
+	private static final int SIN_TABLE_SIZE = 1 << SIN_TABLE_BITS;
+	private static final int SIN_TABLE_MASK = SIN_TABLE_SIZE-1;
+	private static final double SIN_TABLE_SCALE = SIN_TABLE_SIZE / (2*Math.PI);
+	/** sin over [0,2pi] with one extra entry so that interpolation never wraps */
+	private static final float[] SIN_TABLE = new float[SIN_TABLE_SIZE+1];
+	static {
+		for(int i = 0; i <= SIN_TABLE_SIZE; i++)
+			SIN_TABLE[i] = (float) Math.sin(i * 2*Math.PI / SIN_TABLE_SIZE);
+	}
+	
+	/**
+	 * Makes sin, cos and atan2 use their fast approximations when they are
+	 * called from the render or simulation thread of this sketch. Other
+	 * threads (fork-join workers...) are not affected, they can call the
+	 * fastXX methods directly.
+	 */
+	public final void setFastMath(boolean fast) {
+		this.fastMath = fast;
+	}
+	
+	private static boolean fastMath() {
+		Sketch sketch = THREAD_SKETCH.get();
+		return sketch != null && sketch.fastMath;
+	}
+	
+	/**
+	 * Table-based sine with linear interpolation between 4096 samples, the
+	 * absolute error is below 1e-6 for |f| < 1e5. Larger angles fall back
+	 * to {@link Math#sin(double)}, floats cannot represent them precisely
+	 * anyway.
+	 */
+	public static float fastSin(float f) {
+		return sinTable(f*SIN_TABLE_SCALE);
+	}
+	
+	/** Table-based cosine, see {@link #fastSin(float)} */
+	public static float fastCos(float f) {
+		return sinTable(f*SIN_TABLE_SCALE + SIN_TABLE_SIZE/4);
+	}
+	
+	/** t is the angle in table steps, computed in double so that large angles keep their fractional part */
+	private static float sinTable(double t) {
+		if(t > 1e9 || t < -1e9)
+			return (float) Math.sin(t/SIN_TABLE_SCALE);
+		int i = (int) t;
+		if(t < i)
+			i--;
+		float frac = (float) (t-i);
+		i &= SIN_TABLE_MASK;
+		return SIN_TABLE[i] + frac*(SIN_TABLE[i+1]-SIN_TABLE[i]);
+	}
+	
+	/**
+	 * Polynomial approximation of {@code atan2(x, y)} (same argument order
+	 * as {@link #atan2(float, float)}), the absolute error is below 1e-5 rad.
+	 * Signed zeros give the same results as {@link Math#atan2(double, double)},
+	 * {@code fastAtan2(-0f, -1)} is -pi and {@code fastAtan2(0, -0f)} is pi.
+	 */
+	public static float fastAtan2(float x, float y) {
+		float ax = Math.abs(x), ay = Math.abs(y);
+		if(ax == 0 && ay == 0)
+			return Math.copySign(Math.copySign(1f, y) < 0 ? PI : 0, x);
+		// atan of the ratio in [0,1], then mapped back to the right octant
+		boolean swap = ax > ay;
+		float z = swap ? ay/ax : ax/ay;
+		float z2 = z*z;
+		float a = z*(0.99997726f + z2*(-0.33262347f + z2*(0.19354346f +
+				z2*(-0.11643287f + z2*(0.05265332f + z2*-0.01172120f)))));
+		if(swap)
+			a = PI/2 - a;
+		if(y < 0)
+			a = PI - a;
+		// the sign of x, not x < 0, so that -0 gives -pi like Math.atan2
+		return Math.copySign(a, x);
+	}
+	
+	/**
+	 * Approximation of 1/sqrt(f) using the bit-level initial guess refined
+	 * by two Newton iterations, the relative error is below 1e-5.<br>
+	 * This is only worth it when a division would follow a square root,
+	 * as when normalizing vectors.
+	 */
+	public static float invSqrt(float f) {
+		float half = .5f*f;
+		float y = Float.intBitsToFloat(0x5f3759df - (Float.floatToRawIntBits(f) >> 1));
+		y = y*(1.5f - half*y*y);
+		y = y*(1.5f - half*y*y);
+		return y;
 	}
 	
 	public static float lerp(float x, float min, float max) {
@@ -499,8 +1622,25 @@ public abstract class Sketch {
 		return m;
 	}
 	
+	/**
+	 * A 2D vector.<br>
+	 * Methods such as {@link #plus(Vec2)} return new vectors, their
+	 * {@code xxLocal} counterparts modify the vector in place and their
+	 * {@code xxInto} counterparts write the result in a given vector,
+	 * hot loops should use them to avoid allocating. {@link #scratch(int)}
+	 * gives temporary vectors to use with them.
+	 */
 	public static class Vec2 {
 		
+		/** Number of scratch vectors available per thread */
+		public static final int SCRATCH_SIZE = 16;
+		private static final ThreadLocal<Vec2[]> SCRATCH = ThreadLocal.withInitial(() -> {
+			Vec2[] vecs = new Vec2[SCRATCH_SIZE];
+			for(int i = 0; i < SCRATCH_SIZE; i++)
+				vecs[i] = new Vec2();
+			return vecs;
+		});
+		
 		public float x, y;
 		
 		public Vec2(float x, float y) {
@@ -549,6 +1689,82 @@ public abstract class Sketch {
 			return new Vec2(x, y);
 		}
 		
+		/* in place operations, they return this vector */
+		
+		public Vec2 set(float x, float y) {
+			this.x = x;
+			this.y = y;
+			return this;
+		}
+		
+		public Vec2 set(Vec2 v) {
+			return set(v.x, v.y);
+		}
+		
+		public Vec2 addLocal(Vec2 v) {
+			x += v.x;
+			y += v.y;
+			return this;
+		}
+		
+		/** this += v*f */
+		public Vec2 addScaledLocal(Vec2 v, float f) {
+			x += v.x*f;
+			y += v.y*f;
+			return this;
+		}
+		
+		public Vec2 subLocal(Vec2 v) {
+			x -= v.x;
+			y -= v.y;
+			return this;
+		}
+		
+		public Vec2 scaleLocal(float f) {
+			x *= f;
+			y *= f;
+			return this;
+		}
+		
+		public Vec2 normalizeLocal() {
+			return scaleLocal(1/length());
+		}
+		
+		/* operations writing their result in another vector, they return that vector */
+		
+		public Vec2 plusInto(Vec2 v, Vec2 out) {
+			return out.set(x+v.x, y+v.y);
+		}
+		
+		public Vec2 minusInto(Vec2 v, Vec2 out) {
+			return out.set(x-v.x, y-v.y);
+		}
+		
+		public Vec2 timesInto(float f, Vec2 out) {
+			return out.set(x*f, y*f);
+		}
+		
+		public Vec2 normalizedInto(Vec2 out) {
+			float l = length();
+			return out.set(x/l, y/l);
+		}
+		
+		public Vec2 copyInto(Vec2 out) {
+			return out.set(x, y);
+		}
+		
+		/**
+		 * Returns the i-th scratch vector of the current thread, its content
+		 * is undefined. Scratch vectors are shared by everything running on
+		 * the thread so they must not be kept across calls to unknown code,
+		 * hot loops should fetch them once before looping.
+		 * 
+		 * @param i in [0,{@link #SCRATCH_SIZE})
+		 */
+		public static Vec2 scratch(int i) {
+			return SCRATCH.get()[i];
+		}
+		
 		@Override
 		public String toString() {
 			return String.format("(%.2f, %.2f)", x, y);
@@ -570,6 +1786,11 @@ public abstract class Sketch {
 	
 	/* ------------------ Debug -------------------- */
 	
+	/** Returns the draw, present and sleep times of the frames drawn so far */
+	public final FrameTimings frameTimings() {
+		return frameTimings;
+	}
+	
 	public final <T> T LOG(T t) {
 		System.out.println(t);
 		return t;
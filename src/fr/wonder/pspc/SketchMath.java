@@ -3,23 +3,46 @@ package fr.wonder.pspc;
 import fr.wonder.pspc.Sketch.Vec2;
 import static fr.wonder.pspc.Sketch.*;
 
+import java.util.Arrays;
 import java.util.Objects;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 public class SketchMath {
 
+	/**
+	 * A matrix of any size, components are stored row by row in a single
+	 * array.<br>
+	 * Large products are computed by a cache-blocked kernel, split across
+	 * the common {@link ForkJoinPool} when they are big enough for it to
+	 * pay off. Each row of the result is always computed by a single thread
+	 * in the same order so results do not depend on the number of threads.
+	 */
 	public static class Matrix {
 		
+		/** Products with less multiply-adds than this are computed on the calling thread */
+		private static final long PARALLEL_THRESHOLD = 1 << 18;
+		/** Size of the square blocks of the right-hand matrix kept in cache */
+		private static final int BLOCK_SIZE = 128;
+		
 		public final int width, height;
-		private final float[][] components;
+		private final float[] components;
 		
 		public Matrix(int width, int height) {
-			this(new float[height][width]);
+			if(width <= 0 || height <= 0)
+				throw new IllegalArgumentException("Invalid matrix size " + width + "x" + height);
+			this.width = width;
+			this.height = height;
+			this.components = new float[width*height];
 		}
 		
 		public Matrix(float[][] components) {
-			this.width = components[0].length;
-			this.height = components.length;
-			this.components = components;
+			this(components[0].length, components.length);
+			for(int i = 0; i < height; i++) {
+				if(components[i].length != width)
+					throw new IllegalArgumentException("Rows of different lengths");
+				System.arraycopy(components[i], 0, this.components, i*width, width);
+			}
 		}
 		
 		public Matrix(float a11, float a12, float a21, float a22) {
@@ -35,7 +58,7 @@ public class SketchMath {
 		}
 		
 		public static Matrix identity2() {
-			return new Matrix(0, 1, 1, 0);
+			return new Matrix(1, 0, 0, 1);
 		}
 		
 		@Override
@@ -44,15 +67,15 @@ public class SketchMath {
 		}
 		
 		public float at(int row, int col) {
-			Objects.checkIndex(row, width);
-			Objects.checkIndex(col, height);
-			return components[row][col];
+			Objects.checkIndex(row, height);
+			Objects.checkIndex(col, width);
+			return components[row*width+col];
 		}
 		
 		public Matrix set(int row, int col, float x) {
-			Objects.checkIndex(row, width);
-			Objects.checkIndex(col, height);
-			this.components[row][col] = x;
+			Objects.checkIndex(row, height);
+			Objects.checkIndex(col, width);
+			this.components[row*width+col] = x;
 			return this;
 		}
 		
@@ -60,33 +83,674 @@ public class SketchMath {
 			if(width != 2 || height != 2)
 				throw new IllegalStateException("Cannot multiply a non 2x2 matrix with a vector");
 			return new Vec2(
-					at(0, 0)*v.x+at(0, 1)*v.y,
-					at(1, 0)*v.x+at(1, 1)*v.y);
+					components[0]*v.x+components[1]*v.y,
+					components[2]*v.x+components[3]*v.y);
 		}
 		
 		public Matrix multiply(Matrix m) {
+			return multiplyInto(m, new Matrix(m.width, height));
+		}
+		
+		/**
+		 * Computes this*m into out, which must not be one of the operands.
+		 * 
+		 * @return out
+		 */
+		public Matrix multiplyInto(Matrix m, Matrix out) {
 			if(width != m.height)
 				throw new IllegalArgumentException("Cannot multiply matrices with sizes " + this + " " + m);
-			float[][] newComp = new float[height][m.width];
-			for(int i = 0; i < height; i++) {
-				for(int j = 0; j < m.width; j++) {
-					for(int k = 0; k < width; k++)
-						newComp[i][j] += at(i, k)*m.at(k, j);
+			if(out.height != height || out.width != m.width)
+				throw new IllegalArgumentException("Invalid result matrix size " + out + " for " + this + "*" + m);
+			if(out == this || out == m)
+				throw new IllegalArgumentException("The result matrix cannot be an operand");
+			if((long) height*width*m.width < PARALLEL_THRESHOLD)
+				multiplyRows(m, out, 0, height);
+			else
+				ForkJoinPool.commonPool().invoke(new MultiplyTask(this, m, out, 0, height));
+			return out;
+		}
+		
+		/**
+		 * Computes the rows [rowStart,rowEnd[ of out=this*m. Rows are computed
+		 * as sums of rows of m (i-k-j order) so that every access is sequential,
+		 * over blocks of m small enough to stay in cache.
+		 */
+		private void multiplyRows(Matrix m, Matrix out, int rowStart, int rowEnd) {
+			float[] a = components, b = m.components, c = out.components;
+			int n = width, p = m.width;
+			Arrays.fill(c, rowStart*p, rowEnd*p, 0);
+			for(int kb = 0; kb < n; kb += BLOCK_SIZE) {
+				int kEnd = Math.min(n, kb+BLOCK_SIZE);
+				for(int jb = 0; jb < p; jb += BLOCK_SIZE) {
+					int jEnd = Math.min(p, jb+BLOCK_SIZE);
+					for(int i = rowStart; i < rowEnd; i++) {
+						int cRow = i*p;
+						for(int k = kb; k < kEnd; k++) {
+							float aik = a[i*n+k];
+							int bRow = k*p;
+							for(int j = jb; j < jEnd; j++)
+								c[cRow+j] += aik*b[bRow+j];
+						}
+					}
+				}
+			}
+		}
+		
+		private static class MultiplyTask extends RecursiveAction {
+			
+			private static final long serialVersionUID = 1L;
+			
+			private final Matrix a, b, out;
+			private final int rowStart, rowEnd;
+			
+			MultiplyTask(Matrix a, Matrix b, Matrix out, int rowStart, int rowEnd) {
+				this.a = a;
+				this.b = b;
+				this.out = out;
+				this.rowStart = rowStart;
+				this.rowEnd = rowEnd;
+			}
+			
+			@Override
+			protected void compute() {
+				int rows = rowEnd-rowStart;
+				// leaves keep at least BLOCK_SIZE rows, each block of b is reused by all of them
+				if(rows < 2*BLOCK_SIZE || (long) rows*a.width*b.width < PARALLEL_THRESHOLD) {
+					a.multiplyRows(b, out, rowStart, rowEnd);
+				} else {
+					int mid = (rowStart+rowEnd) >>> 1;
+					invokeAll(
+							new MultiplyTask(a, b, out, rowStart, mid),
+							new MultiplyTask(a, b, out, mid, rowEnd));
 				}
 			}
-			return new Matrix(newComp);
+			
 		}
 		
 		public Matrix add(Matrix m) {
+			return addInto(m, new Matrix(width, height));
+		}
+		
+		/**
+		 * Computes this+m into out, out can be one of the operands.
+		 * 
+		 * @return out
+		 */
+		public Matrix addInto(Matrix m, Matrix out) {
 			if(width != m.width || height != m.height)
-				throw new IllegalArgumentException("Cannot multiply matrices with sizes " + this + " " + m);
-			float[][] newComp = new float[height][m.width];
-			for(int i = 0; i < height; i++) {
-				for(int j = 0; j < m.width; j++) {
-					newComp[i][j] = at(i, j) + m.at(i, j);
+				throw new IllegalArgumentException("Cannot add matrices with sizes " + this + " " + m);
+			if(out.width != width || out.height != height)
+				throw new IllegalArgumentException("Invalid result matrix size " + out + " for " + this + "+" + m);
+			float[] a = components, b = m.components, c = out.components;
+			for(int i = 0; i < c.length; i++)
+				c[i] = a[i] + b[i];
+			return out;
+		}
+		
+	}
+	
+	/*
+	 * Fixed size matrices, their components are plain fields so using them
+	 * costs a few multiply-adds, without bounds checks nor allocations when
+	 * the xxInto methods are used. multiplyInto methods accept the same
+	 * object as input and output.
+	 */
+	
+	/** A 2x2 matrix, m{row}{col} */
+	public static class Mat2 {
+		
+		public float m00, m01,
+					 m10, m11;
+		
+		public Mat2(float m00, float m01, float m10, float m11) {
+			set(m00, m01, m10, m11);
+		}
+		
+		public Mat2() {
+			this(1, 0, 0, 1);
+		}
+		
+		public static Mat2 rotation(float angle) {
+			float c = cos(angle);
+			float s = sin(angle);
+			return new Mat2(c, -s, s, c);
+		}
+		
+		public Mat2 set(float m00, float m01, float m10, float m11) {
+			this.m00 = m00; this.m01 = m01;
+			this.m10 = m10; this.m11 = m11;
+			return this;
+		}
+		
+		public float determinant() {
+			return m00*m11 - m01*m10;
+		}
+		
+		public Vec2 multiply(Vec2 v) {
+			return multiplyInto(v, new Vec2());
+		}
+		
+		public Vec2 multiplyInto(Vec2 in, Vec2 out) {
+			return out.set(m00*in.x + m01*in.y, m10*in.x + m11*in.y);
+		}
+		
+		public Mat2 multiply(Mat2 m) {
+			return multiplyInto(m, new Mat2());
+		}
+		
+		/** out = this*m */
+		public Mat2 multiplyInto(Mat2 m, Mat2 out) {
+			return out.set(
+					m00*m.m00 + m01*m.m10, m00*m.m01 + m01*m.m11,
+					m10*m.m00 + m11*m.m10, m10*m.m01 + m11*m.m11);
+		}
+		
+		/** Transforms the first n points (xs[i],ys[i]) in place */
+		public void transform(float[] xs, float[] ys, int n) {
+			for(int i = 0; i < n; i++) {
+				float x = xs[i], y = ys[i];
+				xs[i] = m00*x + m01*y;
+				ys[i] = m10*x + m11*y;
+			}
+		}
+		
+		@Override
+		public String toString() {
+			return String.format("[%.3f %.3f; %.3f %.3f]", m00, m01, m10, m11);
+		}
+		
+	}
+	
+	/**
+	 * A 3x3 matrix, m{row}{col}. When multiplied with 2D points they are
+	 * treated as homogeneous coordinates (x,y,1) and the result is divided
+	 * by its third coordinate.
+	 */
+	public static class Mat3 {
+		
+		public float m00, m01, m02,
+					 m10, m11, m12,
+					 m20, m21, m22;
+		
+		public Mat3() {
+			m00 = m11 = m22 = 1;
+		}
+		
+		public Mat3 set(Mat3 m) {
+			m00 = m.m00; m01 = m.m01; m02 = m.m02;
+			m10 = m.m10; m11 = m.m11; m12 = m.m12;
+			m20 = m.m20; m21 = m.m21; m22 = m.m22;
+			return this;
+		}
+		
+		public float determinant() {
+			return m00*(m11*m22 - m12*m21) - m01*(m10*m22 - m12*m20) + m02*(m10*m21 - m11*m20);
+		}
+		
+		public Vec2 multiply(Vec2 v) {
+			return multiplyInto(v, new Vec2());
+		}
+		
+		public Vec2 multiplyInto(Vec2 in, Vec2 out) {
+			float w = m20*in.x + m21*in.y + m22;
+			return out.set(
+					(m00*in.x + m01*in.y + m02)/w,
+					(m10*in.x + m11*in.y + m12)/w);
+		}
+		
+		public Mat3 multiply(Mat3 m) {
+			return multiplyInto(m, new Mat3());
+		}
+		
+		/** out = this*m */
+		public Mat3 multiplyInto(Mat3 m, Mat3 out) {
+			float r00 = m00*m.m00 + m01*m.m10 + m02*m.m20;
+			float r01 = m00*m.m01 + m01*m.m11 + m02*m.m21;
+			float r02 = m00*m.m02 + m01*m.m12 + m02*m.m22;
+			float r10 = m10*m.m00 + m11*m.m10 + m12*m.m20;
+			float r11 = m10*m.m01 + m11*m.m11 + m12*m.m21;
+			float r12 = m10*m.m02 + m11*m.m12 + m12*m.m22;
+			float r20 = m20*m.m00 + m21*m.m10 + m22*m.m20;
+			float r21 = m20*m.m01 + m21*m.m11 + m22*m.m21;
+			float r22 = m20*m.m02 + m21*m.m12 + m22*m.m22;
+			out.m00 = r00; out.m01 = r01; out.m02 = r02;
+			out.m10 = r10; out.m11 = r11; out.m12 = r12;
+			out.m20 = r20; out.m21 = r21; out.m22 = r22;
+			return out;
+		}
+		
+		/** Transforms the first n points (xs[i],ys[i]) in place */
+		public void transform(float[] xs, float[] ys, int n) {
+			for(int i = 0; i < n; i++) {
+				float x = xs[i], y = ys[i];
+				float w = m20*x + m21*y + m22;
+				xs[i] = (m00*x + m01*y + m02)/w;
+				ys[i] = (m10*x + m11*y + m12)/w;
+			}
+		}
+		
+		@Override
+		public String toString() {
+			return String.format("[%.3f %.3f %.3f; %.3f %.3f %.3f; %.3f %.3f %.3f]",
+					m00, m01, m02, m10, m11, m12, m20, m21, m22);
+		}
+		
+	}
+	
+	/**
+	 * An affine 2D transform {@code p -> M*p + t}, M being a 2x2 matrix
+	 * and t a translation. This is what iterated function systems and
+	 * world-to-screen mappings are made of.
+	 */
+	public static class Affine2 {
+		
+		public float m00, m01, tx,
+					 m10, m11, ty;
+		
+		public Affine2(float m00, float m01, float m10, float m11, float tx, float ty) {
+			set(m00, m01, m10, m11, tx, ty);
+		}
+		
+		public Affine2() {
+			this(1, 0, 0, 1, 0, 0);
+		}
+		
+		public static Affine2 translation(float tx, float ty) {
+			return new Affine2(1, 0, 0, 1, tx, ty);
+		}
+		
+		public static Affine2 rotation(float angle) {
+			float c = cos(angle);
+			float s = sin(angle);
+			return new Affine2(c, -s, s, c, 0, 0);
+		}
+		
+		public static Affine2 scaling(float sx, float sy) {
+			return new Affine2(sx, 0, 0, sy, 0, 0);
+		}
+		
+		public Affine2 set(float m00, float m01, float m10, float m11, float tx, float ty) {
+			this.m00 = m00; this.m01 = m01; this.tx = tx;
+			this.m10 = m10; this.m11 = m11; this.ty = ty;
+			return this;
+		}
+		
+		public Vec2 multiply(Vec2 v) {
+			return multiplyInto(v, new Vec2());
+		}
+		
+		public Vec2 multiplyInto(Vec2 in, Vec2 out) {
+			return out.set(
+					m00*in.x + m01*in.y + tx,
+					m10*in.x + m11*in.y + ty);
+		}
+		
+		/** Returns this*a, the transform applying a then this */
+		public Affine2 multiply(Affine2 a) {
+			return multiplyInto(a, new Affine2());
+		}
+		
+		/** out = this*a, the transform applying a then this */
+		public Affine2 multiplyInto(Affine2 a, Affine2 out) {
+			return out.set(
+					m00*a.m00 + m01*a.m10, m00*a.m01 + m01*a.m11,
+					m10*a.m00 + m11*a.m10, m10*a.m01 + m11*a.m11,
+					m00*a.tx + m01*a.ty + tx,
+					m10*a.tx + m11*a.ty + ty);
+		}
+		
+		/** Transforms the first n points (xs[i],ys[i]) in place */
+		public void transform(float[] xs, float[] ys, int n) {
+			for(int i = 0; i < n; i++) {
+				float x = xs[i], y = ys[i];
+				xs[i] = m00*x + m01*y + tx;
+				ys[i] = m10*x + m11*y + ty;
+			}
+		}
+		
+		@Override
+		public String toString() {
+			return String.format("[%.3f %.3f %.3f; %.3f %.3f %.3f]", m00, m01, tx, m10, m11, ty);
+		}
+		
+	}
+	
+	/**
+	 * A bezier curve of any degree, evaluated with de Casteljau's algorithm.<br>
+	 * <br>
+	 * Evaluations run in a triangular scratch buffer holding every
+	 * intermediate level, level 0 being the control points and the last
+	 * level the point of the curve, they can be read back to draw the
+	 * construction of the curve. Nothing is allocated unless control points
+	 * are added beyond the current capacity.<br>
+	 * The curve can also be flattened into a polyline of points sampled
+	 * every {@code step} along t. Samples are cached and only computed as
+	 * {@link #polyline(float)} is called with larger values of t, the cache
+	 * is invalidated when the control points change.
+	 */
+	public static class BezierCurve {
+		
+		private final float step;
+		private float[] controlX, controlY;
+		private int size;
+		
+		/** levels of the last evaluation, level k starts at levelStart(k) and holds size-k points */
+		private float[] levelX = new float[0], levelY = new float[0];
+		
+		private float[] polyX = new float[0], polyY = new float[0];
+		private int polySize;
+		private final Vec2 polyPoint = new Vec2();
+		
+		/** @param step the interval between two samples of the polyline */
+		public BezierCurve(float step) {
+			if(step <= 0)
+				throw new IllegalArgumentException("Invalid step " + step);
+			this.step = step;
+			this.controlX = new float[8];
+			this.controlY = new float[8];
+		}
+		
+		/* ------------------ Control points -------------------- */
+		
+		public int size() {
+			return size;
+		}
+		
+		public float x(int i) {
+			Objects.checkIndex(i, size);
+			return controlX[i];
+		}
+		
+		public float y(int i) {
+			Objects.checkIndex(i, size);
+			return controlY[i];
+		}
+		
+		public void add(float x, float y) {
+			if(size == controlX.length) {
+				controlX = Arrays.copyOf(controlX, size*2);
+				controlY = Arrays.copyOf(controlY, size*2);
+			}
+			controlX[size] = x;
+			controlY[size] = y;
+			size++;
+			invalidate();
+		}
+		
+		public void set(int i, float x, float y) {
+			Objects.checkIndex(i, size);
+			controlX[i] = x;
+			controlY[i] = y;
+			invalidate();
+		}
+		
+		/** Removes the i-th control point, the following ones are shifted */
+		public void remove(int i) {
+			Objects.checkIndex(i, size);
+			System.arraycopy(controlX, i+1, controlX, i, size-i-1);
+			System.arraycopy(controlY, i+1, controlY, i, size-i-1);
+			size--;
+			invalidate();
+		}
+		
+		public void clear() {
+			size = 0;
+			invalidate();
+		}
+		
+		private void invalidate() {
+			polySize = 0;
+		}
+		
+		/* ------------------ Evaluation -------------------- */
+		
+		/** Returns the index in the scratch buffer of the first point of level k */
+		private int levelStart(int k) {
+			return k*size - k*(k-1)/2;
+		}
+		
+		/**
+		 * Runs de Casteljau's algorithm at t, the intermediate points can then
+		 * be read with {@link #levelX(int, int)} and {@link #levelY(int, int)}.
+		 * There must be at least one control point.
+		 *
+		 * @return out, set to the point of the curve at t
+		 */
+		public Vec2 evaluate(float t, Vec2 out) {
+			if(size == 0)
+				throw new IllegalStateException("The curve has no control point");
+			int total = size*(size+1)/2;
+			if(levelX.length < total) {
+				levelX = new float[total];
+				levelY = new float[total];
+			}
+			System.arraycopy(controlX, 0, levelX, 0, size);
+			System.arraycopy(controlY, 0, levelY, 0, size);
+			int previous = 0;
+			for(int k = 1; k < size; k++) {
+				int current = levelStart(k);
+				for(int i = 0; i < size-k; i++) {
+					float ux = levelX[previous+i], uy = levelY[previous+i];
+					levelX[current+i] = ux + (levelX[previous+i+1]-ux)*t;
+					levelY[current+i] = uy + (levelY[previous+i+1]-uy)*t;
 				}
+				previous = current;
 			}
-			return new Matrix(newComp);
+			return out.set(levelX[previous], levelY[previous]);
+		}
+		
+		/** Returns the x coordinate of the i-th point of level k of the last evaluation, level 0 is the control points */
+		public float levelX(int k, int i) {
+			Objects.checkIndex(i, size-k);
+			return levelX[levelStart(k)+i];
+		}
+		
+		/** Returns the y coordinate of the i-th point of level k of the last evaluation, level 0 is the control points */
+		public float levelY(int k, int i) {
+			Objects.checkIndex(i, size-k);
+			return levelY[levelStart(k)+i];
+		}
+		
+		/* ------------------ Polyline -------------------- */
+		
+		/**
+		 * Samples the curve at every multiple of step below t that was not
+		 * sampled yet and returns the number of samples below t, they can be
+		 * read with {@link #polylineX()} and {@link #polylineY()}. Sampling
+		 * overwrites the levels of the last evaluation.
+		 */
+		public int polyline(float t) {
+			int count = size == 0 ? 0 : (int) Math.ceil(t/step);
+			if(count > polySize) {
+				if(polyX.length < count) {
+					polyX = Arrays.copyOf(polyX, Math.max(count, polyX.length*2));
+					polyY = Arrays.copyOf(polyY, polyX.length);
+				}
+				for(int k = polySize; k < count; k++) {
+					evaluate(k*step, polyPoint);
+					polyX[k] = polyPoint.x;
+					polyY[k] = polyPoint.y;
+				}
+				polySize = count;
+			}
+			return count;
+		}
+		
+		/** Returns the x coordinates of the cached samples, the array may be replaced when the polyline grows */
+		public float[] polylineX() {
+			return polyX;
+		}
+		
+		/** Returns the y coordinates of the cached samples, the array may be replaced when the polyline grows */
+		public float[] polylineY() {
+			return polyY;
+		}
+		
+	}
+	
+	/**
+	 * The graph of a function over a range, flattened into a polyline whose
+	 * precision is set in screen pixels.<br>
+	 * <br>
+	 * The range is cut into uniform intervals which are split in two while
+	 * their midpoint is more than a quarter of a pixel away from their chord,
+	 * or while the curve turns too much between their two halves, so flat
+	 * parts get few samples and sharp features as many as they need. An
+	 * interval in which the curve moves by more than a pixel but almost only
+	 * in one of its halves is split too, if it still does after
+	 * {@link #MAX_DEPTH} splits it is a discontinuity and the polyline is
+	 * broken there.
+	 * Non-finite values also break the polyline and intervals that are
+	 * entirely above or below the screen are not refined.<br>
+	 * Breaks are stored as NaN samples. Samples are kept until the function,
+	 * the range or the transform change, or {@link #invalidate()} is called.
+	 */
+	public static class FunctionPlot {
+		
+		private static final int INITIAL_INTERVALS = 64;
+		private static final int MAX_DEPTH = 12;
+		/** Largest distance between the curve and the polyline, in pixels */
+		private static final float TOLERANCE = .25f;
+		/** Cosine of the largest angle between two consecutive segments longer than a pixel */
+		private static final float MIN_TURN_COS = .996f;
+		/** Shortest jump considered a discontinuity, in pixels */
+		private static final float MIN_JUMP = 1;
+		/** Share of a jump below which a half of an interval is considered flat */
+		private static final float JUMP_SHARE = .05f;
+		
+		private float[] sampleX = new float[256], sampleY = new float[256];
+		private int size;
+		
+		private FloatUnaryOperator function;
+		private float xmin, xmax, screenHeight;
+		/** world to screen transform the samples were computed for */
+		private final Affine2 view = new Affine2();
+		
+		/**
+		 * Samples f over [xmin,xmax] for the given world to screen transform
+		 * unless the samples of the last call are still valid.
+		 * 
+		 * @param screenHeight the height of the screen, in pixels
+		 * @return true if the function was sampled again
+		 */
+		public boolean update(FloatUnaryOperator f, float xmin, float xmax, Affine2 worldToScreen, float screenHeight) {
+			Affine2 v = worldToScreen;
+			if(f == function && xmin == this.xmin && xmax == this.xmax && screenHeight == this.screenHeight &&
+					v.m00 == view.m00 && v.m01 == view.m01 && v.tx == view.tx &&
+					v.m10 == view.m10 && v.m11 == view.m11 && v.ty == view.ty)
+				return false;
+			this.function = f;
+			this.xmin = xmin;
+			this.xmax = xmax;
+			this.screenHeight = screenHeight;
+			view.set(v.m00, v.m01, v.m10, v.m11, v.tx, v.ty);
+			
+			size = 0;
+			float a = xmin, fa = f.apply(a);
+			if(Float.isFinite(fa))
+				emit(a, fa);
+			for(int i = 1; i <= INITIAL_INTERVALS; i++) {
+				float b = i == INITIAL_INTERVALS ? xmax : lerp((float) i/INITIAL_INTERVALS, xmin, xmax);
+				float fb = f.apply(b);
+				refine(f, a, fa, b, fb, 0);
+				a = b;
+				fa = fb;
+			}
+			return true;
+		}
+		
+		/** Forgets the samples, the next update samples the function again */
+		public void invalidate() {
+			function = null;
+		}
+		
+		/** Returns the number of samples, including breaks */
+		public int size() {
+			return size;
+		}
+		
+		/** Returns the x coordinates of the samples, NaN for breaks. The array is replaced when it grows */
+		public float[] x() {
+			return sampleX;
+		}
+		
+		/** Returns the y coordinates of the samples, NaN for breaks. The array is replaced when it grows */
+		public float[] y() {
+			return sampleY;
+		}
+		
+		/** Emits the samples of ]a,b], (a,fa) being the last sample emitted */
+		private void refine(FloatUnaryOperator f, float a, float fa, float b, float fb, int depth) {
+			float m = (a+b)*.5f, fm = f.apply(m);
+			boolean finite = Float.isFinite(fa) && Float.isFinite(fm) && Float.isFinite(fb);
+			if(finite) {
+				float ax = view.m00*a + view.m01*fa + view.tx, ay = view.m10*a + view.m11*fa + view.ty;
+				float mx = view.m00*m + view.m01*fm + view.tx, my = view.m10*m + view.m11*fm + view.ty;
+				float bx = view.m00*b + view.m01*fb + view.tx, by = view.m10*b + view.m11*fb + view.ty;
+				boolean offScreen = (ay < 0 && my < 0 && by < 0) || (ay > screenHeight && my > screenHeight && by > screenHeight);
+				boolean jump = isJump(ax, ay, mx, my, bx, by);
+				if(offScreen || !jump && !needsSplit(ax, ay, mx, my, bx, by)) {
+					emit(b, fb);
+					return;
+				}
+				if(depth == MAX_DEPTH) {
+					// a continuous curve would look linear at this scale
+					if(dist(ax, ay, bx, by) > MIN_JUMP)
+						emitBreak();
+					emit(b, fb);
+					return;
+				}
+			} else if(depth == MAX_DEPTH || !Float.isFinite(fa) && !Float.isFinite(fm) && !Float.isFinite(fb)) {
+				emitBreak();
+				if(Float.isFinite(fb))
+					emit(b, fb);
+				return;
+			}
+			refine(f, a, fa, m, fm, depth+1);
+			refine(f, m, fm, b, fb, depth+1);
+		}
+		
+		/**
+		 * Returns true if the curve looks like it jumps between a and b: it
+		 * moves by more than a pixel and almost all of the move happens in
+		 * one half of the interval. Continuous functions look linear once
+		 * the interval is small enough and stop looking like jumps.
+		 */
+		private static boolean isJump(float ax, float ay, float mx, float my, float bx, float by) {
+			float move = dist(ax, ay, bx, by);
+			return move > MIN_JUMP && Math.min(dist(ax, ay, mx, my), dist(mx, my, bx, by)) < JUMP_SHARE*move;
+		}
+		
+		private static boolean needsSplit(float ax, float ay, float mx, float my, float bx, float by) {
+			float cx = bx-ax, cy = by-ay;
+			float chord = (float) Math.sqrt(cx*cx + cy*cy);
+			float deviation = chord == 0 ?
+					dist(ax, ay, mx, my) :
+					Math.abs(cx*(my-ay) - cy*(mx-ax)) / chord;
+			if(deviation > TOLERANCE)
+				return true;
+			float ux = mx-ax, uy = my-ay, vx = bx-mx, vy = by-my;
+			float lu = (float) Math.sqrt(ux*ux + uy*uy), lv = (float) Math.sqrt(vx*vx + vy*vy);
+			return lu > 1 && lv > 1 && (ux*vx + uy*vy) < MIN_TURN_COS*lu*lv;
+		}
+		
+		private static float dist(float x1, float y1, float x2, float y2) {
+			return (float) Math.hypot(x2-x1, y2-y1);
+		}
+		
+		private void emit(float x, float y) {
+			if(size == sampleX.length) {
+				sampleX = Arrays.copyOf(sampleX, size*2);
+				sampleY = Arrays.copyOf(sampleY, size*2);
+			}
+			sampleX[size] = x;
+			sampleY[size] = y;
+			size++;
+		}
+		
+		private void emitBreak() {
+			if(size > 0 && !Float.isNaN(sampleX[size-1]))
+				emit(Float.NaN, Float.NaN);
 		}
 		
 	}
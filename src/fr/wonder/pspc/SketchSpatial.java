@@ -0,0 +1,589 @@
+package fr.wonder.pspc;
+
+import java.util.Arrays;
+import java.util.function.IntConsumer;
+
+/**
+ * Spatial indices for neighbour and hit queries over points.<br>
+ * <br>
+ * Both indices store item indices (typically indices in a {@link ParticleBuffer}
+ * or in parallel coordinate arrays) in primitive arrays, queries write the
+ * indices found in an array given by the caller and never allocate.
+ * <ul>
+ * <li>{@link Grid} is rebuilt from scratch, typically once per step, and is
+ * the fastest choice when most items move every step and have similar sizes</li>
+ * <li>{@link QuadTree} is updated item by item and suits sparse or clustered
+ * sets where few items move, like picking among control points</li>
+ * </ul>
+ */
+public class SketchSpatial {
+	
+	/**
+	 * A uniform grid over a rectangle, rebuilt with {@link #build(float[], float[], int)}.<br>
+	 * <br>
+	 * Items are counting-sorted by cell so the items of a cell are contiguous:
+	 * the items of cell {@code c} are {@code item(k)} for k in
+	 * {@code [cellStart(c), cellEnd(c)[}, in increasing index order. Cells
+	 * are numbered row by row, {@code c = column + row*cols()}.<br>
+	 * Items outside of the grid bounds are stored in the nearest border cell,
+	 * queries stay correct but get slower the more items are outside. The
+	 * cell size should be about the largest query radius.
+	 */
+	public static class Grid {
+		
+		private final float minX, minY, cellSize, invCellSize;
+		private final int cols, rows;
+		/** cellStart[c] is the index in items of the first item of cell c, cellStart[cols*rows] is the item count */
+		private final int[] cellStart;
+		private int[] items = new int[0];
+		private int[] itemCell = new int[0];
+		private float[] xs, ys;
+		private int count;
+		
+		public Grid(float minX, float minY, float maxX, float maxY, float cellSize) {
+			if(cellSize <= 0 || maxX <= minX || maxY <= minY)
+				throw new IllegalArgumentException("Invalid grid bounds or cell size");
+			this.minX = minX;
+			this.minY = minY;
+			this.cellSize = cellSize;
+			this.invCellSize = 1/cellSize;
+			this.cols = Math.max(1, (int) Math.ceil((maxX-minX)/cellSize));
+			this.rows = Math.max(1, (int) Math.ceil((maxY-minY)/cellSize));
+			this.cellStart = new int[cols*rows+1];
+		}
+		
+		/**
+		 * Sorts the first {@code count} points into the grid. The arrays are
+		 * kept and read by later queries, they must not be modified until the
+		 * next build.
+		 */
+		public void build(float[] xs, float[] ys, int count) {
+			if(items.length < count) {
+				items = new int[Math.max(count, items.length*2)];
+				itemCell = new int[items.length];
+			}
+			this.xs = xs;
+			this.ys = ys;
+			this.count = count;
+			int cells = cols*rows;
+			Arrays.fill(cellStart, 0);
+			for(int i = 0; i < count; i++) {
+				int c = column(xs[i]) + row(ys[i])*cols;
+				itemCell[i] = c;
+				cellStart[c+1]++;
+			}
+			for(int c = 0; c < cells; c++)
+				cellStart[c+1] += cellStart[c];
+			// cellStart[c] is used as the insertion cursor of cell c, after this
+			// loop it is the start of cell c+1 so the array is shifted back
+			for(int i = 0; i < count; i++)
+				items[cellStart[itemCell[i]]++] = i;
+			for(int c = cells; c > 0; c--)
+				cellStart[c] = cellStart[c-1];
+			cellStart[0] = 0;
+		}
+		
+		public int column(float x) {
+			return Math.max(0, Math.min(cols-1, (int) Math.floor((x-minX)*invCellSize)));
+		}
+		
+		public int row(float y) {
+			return Math.max(0, Math.min(rows-1, (int) Math.floor((y-minY)*invCellSize)));
+		}
+		
+		public int cols() {
+			return cols;
+		}
+		
+		public int rows() {
+			return rows;
+		}
+		
+		public float cellSize() {
+			return cellSize;
+		}
+		
+		/** Returns the number of items in the grid */
+		public int size() {
+			return count;
+		}
+		
+		public int cellStart(int cell) {
+			return cellStart[cell];
+		}
+		
+		public int cellEnd(int cell) {
+			return cellStart[cell+1];
+		}
+		
+		/** Returns the k-th item in cell order */
+		public int item(int k) {
+			return items[k];
+		}
+		
+		/** Returns the cell of the i-th item, as computed by the last build */
+		public int cellOf(int i) {
+			return itemCell[i];
+		}
+		
+		/**
+		 * Writes the indices of the items at distance at most r of (x,y) in
+		 * {@code out} and returns how many were found. When more items than
+		 * {@code out.length} are found the returned count is larger than the
+		 * array and only the first ones are written.
+		 */
+		public int queryRadius(float x, float y, float r, int[] out) {
+			int c0 = column(x-r), c1 = column(x+r);
+			int r0 = row(y-r), r1 = row(y+r);
+			float r2 = r*r;
+			int n = 0;
+			for(int row = r0; row <= r1; row++) {
+				for(int c = row*cols+c0, end = row*cols+c1; c <= end; c++) {
+					for(int k = cellStart[c]; k < cellStart[c+1]; k++) {
+						int i = items[k];
+						float dx = xs[i]-x, dy = ys[i]-y;
+						if(dx*dx + dy*dy <= r2) {
+							if(n < out.length)
+								out[n] = i;
+							n++;
+						}
+					}
+				}
+			}
+			return n;
+		}
+		
+		/** Calls {@code action} with every item at distance at most r of (x,y) */
+		public void forEachInRadius(float x, float y, float r, IntConsumer action) {
+			int c0 = column(x-r), c1 = column(x+r);
+			int r0 = row(y-r), r1 = row(y+r);
+			float r2 = r*r;
+			for(int row = r0; row <= r1; row++) {
+				for(int c = row*cols+c0, end = row*cols+c1; c <= end; c++) {
+					for(int k = cellStart[c]; k < cellStart[c+1]; k++) {
+						int i = items[k];
+						float dx = xs[i]-x, dy = ys[i]-y;
+						if(dx*dx + dy*dy <= r2)
+							action.accept(i);
+					}
+				}
+			}
+		}
+		
+		/** Same as {@link #queryRadius(float, float, float, int[])} with the items inside the given rectangle */
+		public int queryRect(float xmin, float ymin, float xmax, float ymax, int[] out) {
+			int c0 = column(xmin), c1 = column(xmax);
+			int r0 = row(ymin), r1 = row(ymax);
+			int n = 0;
+			for(int row = r0; row <= r1; row++) {
+				for(int c = row*cols+c0, end = row*cols+c1; c <= end; c++) {
+					for(int k = cellStart[c]; k < cellStart[c+1]; k++) {
+						int i = items[k];
+						float x = xs[i], y = ys[i];
+						if(xmin <= x && x <= xmax && ymin <= y && y <= ymax) {
+							if(n < out.length)
+								out[n] = i;
+							n++;
+						}
+					}
+				}
+			}
+			return n;
+		}
+		
+		/**
+		 * Returns the index of the item nearest to (x,y) among the items at
+		 * distance at most {@code maxDistance}, or -1 if there are none.
+		 * Cells are visited in growing rings around (x,y) until no closer item
+		 * can be found.
+		 */
+		public int nearest(float x, float y, float maxDistance) {
+			int cx = column(x), cy = row(y);
+			int maxRing = (int) Math.min(Math.max(cols, rows), Math.ceil(maxDistance*invCellSize)+1);
+			float best2 = maxDistance*maxDistance;
+			int best = -1;
+			for(int ring = 0; ring <= maxRing; ring++) {
+				// items of this ring are at least (ring-1) cells away
+				float ringDistance = (ring-1)*cellSize;
+				if(ring > 1 && ringDistance*ringDistance > best2)
+					break;
+				int r0 = Math.max(0, cy-ring), r1 = Math.min(rows-1, cy+ring);
+				int c0 = Math.max(0, cx-ring), c1 = Math.min(cols-1, cx+ring);
+				for(int row = r0; row <= r1; row++) {
+					boolean edgeRow = row == cy-ring || row == cy+ring;
+					// inner rows only have their two border cells in the ring
+					int step = edgeRow ? 1 : Math.max(1, 2*ring);
+					for(int col = cx-ring; col <= cx+ring; col += step) {
+						if(col < c0 || col > c1)
+							continue;
+						int c = col + row*cols;
+						for(int k = cellStart[c]; k < cellStart[c+1]; k++) {
+							int i = items[k];
+							float dx = xs[i]-x, dy = ys[i]-y;
+							float d2 = dx*dx + dy*dy;
+							if(d2 <= best2 && (best == -1 || d2 < best2 || i < best)) {
+								best2 = d2;
+								best = i;
+							}
+						}
+					}
+				}
+			}
+			return best;
+		}
+		
+	}
+	
+	/**
+	 * A point quadtree over a fixed rectangle, updated incrementally.<br>
+	 * <br>
+	 * Items are identified by a non-negative index chosen by the caller and
+	 * can be inserted, moved and removed at any time. Leaves are split when
+	 * they hold more than {@link #LEAF_CAPACITY} items and merged back when
+	 * items are removed. Nodes are taken from a pool stored in primitive
+	 * arrays, so once the pool has grown updates and queries do not allocate.
+	 */
+	public static class QuadTree {
+		
+		public static final int LEAF_CAPACITY = 8;
+		public static final int MAX_DEPTH = 16;
+		
+		private final float minX, minY, maxX, maxY;
+		
+		// nodes, the 4 children of a node are contiguous, child[n] is the first or -1 for leaves
+		private float[] nodeMinX, nodeMinY, nodeMaxX, nodeMaxY;
+		private int[] child, parent, depth, head, itemCount;
+		private int nodeCount;
+		private int[] freeBlocks = new int[16];
+		private int freeBlockCount;
+		
+		// items, stored in singly linked lists per leaf
+		private float[] itemX = new float[0], itemY = new float[0];
+		private int[] itemNext = new int[0], itemLeaf = new int[0];
+		private int size;
+		
+		/** DFS stack for queries, 3 entries per level are enough as one child is visited right away */
+		private final int[] stack = new int[3*MAX_DEPTH+4];
+		
+		public QuadTree(float minX, float minY, float maxX, float maxY) {
+			if(maxX <= minX || maxY <= minY)
+				throw new IllegalArgumentException("Invalid quadtree bounds");
+			this.minX = minX;
+			this.minY = minY;
+			this.maxX = maxX;
+			this.maxY = maxY;
+			allocateNodes(1+4*16);
+			clear();
+		}
+		
+		private void allocateNodes(int capacity) {
+			nodeMinX = nodeMinX == null ? new float[capacity] : Arrays.copyOf(nodeMinX, capacity);
+			nodeMinY = nodeMinY == null ? new float[capacity] : Arrays.copyOf(nodeMinY, capacity);
+			nodeMaxX = nodeMaxX == null ? new float[capacity] : Arrays.copyOf(nodeMaxX, capacity);
+			nodeMaxY = nodeMaxY == null ? new float[capacity] : Arrays.copyOf(nodeMaxY, capacity);
+			child = child == null ? new int[capacity] : Arrays.copyOf(child, capacity);
+			parent = parent == null ? new int[capacity] : Arrays.copyOf(parent, capacity);
+			depth = depth == null ? new int[capacity] : Arrays.copyOf(depth, capacity);
+			head = head == null ? new int[capacity] : Arrays.copyOf(head, capacity);
+			itemCount = itemCount == null ? new int[capacity] : Arrays.copyOf(itemCount, capacity);
+		}
+		
+		private void ensureItemCapacity(int capacity) {
+			if(capacity <= itemX.length)
+				return;
+			int previous = itemX.length;
+			capacity = Math.max(capacity, previous*2);
+			itemX = Arrays.copyOf(itemX, capacity);
+			itemY = Arrays.copyOf(itemY, capacity);
+			itemNext = Arrays.copyOf(itemNext, capacity);
+			itemLeaf = Arrays.copyOf(itemLeaf, capacity);
+			Arrays.fill(itemLeaf, previous, capacity, -1);
+		}
+		
+		/** Removes every item, the node pool is kept */
+		public void clear() {
+			nodeCount = 1;
+			freeBlockCount = 0;
+			size = 0;
+			Arrays.fill(itemLeaf, -1);
+			initNode(0, -1, 0, minX, minY, maxX, maxY);
+		}
+		
+		private void initNode(int n, int parentNode, int nodeDepth, float x0, float y0, float x1, float y1) {
+			nodeMinX[n] = x0;
+			nodeMinY[n] = y0;
+			nodeMaxX[n] = x1;
+			nodeMaxY[n] = y1;
+			child[n] = -1;
+			parent[n] = parentNode;
+			depth[n] = nodeDepth;
+			head[n] = -1;
+			itemCount[n] = 0;
+		}
+		
+		/** Returns the number of items in the tree */
+		public int size() {
+			return size;
+		}
+		
+		public boolean contains(int id) {
+			return id >= 0 && id < itemLeaf.length && itemLeaf[id] != -1;
+		}
+		
+		/**
+		 * Inserts the item {@code id} at (x,y), or moves it there if it is
+		 * already in the tree.
+		 *
+		 * @throws IllegalArgumentException if (x,y) is outside of the tree bounds
+		 */
+		public void insert(int id, float x, float y) {
+			if(id < 0)
+				throw new IllegalArgumentException("Invalid item index " + id);
+			checkBounds(x, y);
+			if(contains(id)) {
+				move(id, x, y);
+				return;
+			}
+			ensureItemCapacity(id+1);
+			itemX[id] = x;
+			itemY[id] = y;
+			int leaf = 0;
+			while(child[leaf] != -1)
+				leaf = child[leaf] + quadrant(leaf, x, y);
+			link(id, leaf);
+			size++;
+			if(itemCount[leaf] > LEAF_CAPACITY)
+				split(leaf);
+		}
+		
+		/** Moves an item already in the tree, cheap while it stays in its leaf */
+		public void move(int id, float x, float y) {
+			if(!contains(id))
+				throw new IllegalArgumentException("Item " + id + " is not in the quadtree");
+			checkBounds(x, y);
+			int leaf = itemLeaf[id];
+			if(nodeMinX[leaf] <= x && x <= nodeMaxX[leaf] && nodeMinY[leaf] <= y && y <= nodeMaxY[leaf]) {
+				itemX[id] = x;
+				itemY[id] = y;
+			} else {
+				remove(id);
+				insert(id, x, y);
+			}
+		}
+		
+		/** Removes an item, returns false if it was not in the tree */
+		public boolean remove(int id) {
+			if(!contains(id))
+				return false;
+			int leaf = itemLeaf[id];
+			if(head[leaf] == id) {
+				head[leaf] = itemNext[id];
+			} else {
+				int i = head[leaf];
+				while(itemNext[i] != id)
+					i = itemNext[i];
+				itemNext[i] = itemNext[id];
+			}
+			itemLeaf[id] = -1;
+			itemCount[leaf]--;
+			size--;
+			int n = parent[leaf];
+			while(n != -1 && tryMerge(n))
+				n = parent[n];
+			return true;
+		}
+		
+		private void checkBounds(float x, float y) {
+			if(!(minX <= x && x <= maxX && minY <= y && y <= maxY))
+				throw new IllegalArgumentException("Position out of the quadtree bounds: " + x + "," + y);
+		}
+		
+		public float x(int id) {
+			return itemX[id];
+		}
+		
+		public float y(int id) {
+			return itemY[id];
+		}
+		
+		private int quadrant(int node, float x, float y) {
+			float cx = (nodeMinX[node]+nodeMaxX[node])*.5f;
+			float cy = (nodeMinY[node]+nodeMaxY[node])*.5f;
+			return (x < cx ? 0 : 1) + (y < cy ? 0 : 2);
+		}
+		
+		private void link(int id, int leaf) {
+			itemNext[id] = head[leaf];
+			head[leaf] = id;
+			itemLeaf[id] = leaf;
+			itemCount[leaf]++;
+		}
+		
+		private void split(int leaf) {
+			if(depth[leaf] >= MAX_DEPTH)
+				return;
+			int block;
+			if(freeBlockCount > 0) {
+				block = freeBlocks[--freeBlockCount];
+			} else {
+				if(nodeCount+4 > child.length)
+					allocateNodes(child.length*2);
+				block = nodeCount;
+				nodeCount += 4;
+			}
+			float x0 = nodeMinX[leaf], y0 = nodeMinY[leaf];
+			float x1 = nodeMaxX[leaf], y1 = nodeMaxY[leaf];
+			float cx = (x0+x1)*.5f, cy = (y0+y1)*.5f;
+			int d = depth[leaf]+1;
+			initNode(block  , leaf, d, x0, y0, cx, cy);
+			initNode(block+1, leaf, d, cx, y0, x1, cy);
+			initNode(block+2, leaf, d, x0, cy, cx, y1);
+			initNode(block+3, leaf, d, cx, cy, x1, y1);
+			child[leaf] = block;
+			int i = head[leaf];
+			head[leaf] = -1;
+			itemCount[leaf] = 0;
+			while(i != -1) {
+				int next = itemNext[i];
+				link(i, block + quadrant(leaf, itemX[i], itemY[i]));
+				i = next;
+			}
+			for(int c = block; c < block+4; c++) {
+				if(itemCount[c] > LEAF_CAPACITY)
+					split(c);
+			}
+		}
+		
+		/** Merges the children of a node into it if they are leaves holding few enough items */
+		private boolean tryMerge(int node) {
+			int block = child[node];
+			int total = 0;
+			for(int c = block; c < block+4; c++) {
+				if(child[c] != -1)
+					return false;
+				total += itemCount[c];
+			}
+			if(total > LEAF_CAPACITY)
+				return false;
+			child[node] = -1;
+			head[node] = -1;
+			itemCount[node] = 0;
+			for(int c = block; c < block+4; c++) {
+				int i = head[c];
+				while(i != -1) {
+					int next = itemNext[i];
+					link(i, node);
+					i = next;
+				}
+			}
+			if(freeBlockCount == freeBlocks.length)
+				freeBlocks = Arrays.copyOf(freeBlocks, freeBlocks.length*2);
+			freeBlocks[freeBlockCount++] = block;
+			return true;
+		}
+		
+		/** Squared distance between (x,y) and the bounds of a node, 0 if the point is inside */
+		private float boxDistance2(int node, float x, float y) {
+			float dx = Math.max(0, Math.max(nodeMinX[node]-x, x-nodeMaxX[node]));
+			float dy = Math.max(0, Math.max(nodeMinY[node]-y, y-nodeMaxY[node]));
+			return dx*dx + dy*dy;
+		}
+		
+		/**
+		 * Writes the indices of the items at distance at most r of (x,y) in
+		 * {@code out} and returns how many were found. When more items than
+		 * {@code out.length} are found the returned count is larger than the
+		 * array and only the first ones are written.
+		 */
+		public int queryRadius(float x, float y, float r, int[] out) {
+			float r2 = r*r;
+			int n = 0;
+			int top = 0;
+			stack[top++] = 0;
+			while(top > 0) {
+				int node = stack[--top];
+				if(boxDistance2(node, x, y) > r2)
+					continue;
+				if(child[node] != -1) {
+					for(int c = child[node]; c < child[node]+4; c++)
+						stack[top++] = c;
+					continue;
+				}
+				for(int i = head[node]; i != -1; i = itemNext[i]) {
+					float dx = itemX[i]-x, dy = itemY[i]-y;
+					if(dx*dx + dy*dy <= r2) {
+						if(n < out.length)
+							out[n] = i;
+						n++;
+					}
+				}
+			}
+			return n;
+		}
+		
+		/** Same as {@link #queryRadius(float, float, float, int[])} with the items inside the given rectangle */
+		public int queryRect(float xmin, float ymin, float xmax, float ymax, int[] out) {
+			int n = 0;
+			int top = 0;
+			stack[top++] = 0;
+			while(top > 0) {
+				int node = stack[--top];
+				if(nodeMaxX[node] < xmin || nodeMinX[node] > xmax || nodeMaxY[node] < ymin || nodeMinY[node] > ymax)
+					continue;
+				if(child[node] != -1) {
+					for(int c = child[node]; c < child[node]+4; c++)
+						stack[top++] = c;
+					continue;
+				}
+				for(int i = head[node]; i != -1; i = itemNext[i]) {
+					float x = itemX[i], y = itemY[i];
+					if(xmin <= x && x <= xmax && ymin <= y && y <= ymax) {
+						if(n < out.length)
+							out[n] = i;
+						n++;
+					}
+				}
+			}
+			return n;
+		}
+		
+		/**
+		 * Returns the index of the item nearest to (x,y) among the items at
+		 * distance at most {@code maxDistance}, or -1 if there are none.
+		 * Subtrees farther than the best item found so far are skipped and
+		 * the nearest children are visited first.
+		 */
+		public int nearest(float x, float y, float maxDistance) {
+			float best2 = maxDistance*maxDistance;
+			int best = -1;
+			int top = 0;
+			stack[top++] = 0;
+			while(top > 0) {
+				int node = stack[--top];
+				if(boxDistance2(node, x, y) > best2)
+					continue;
+				if(child[node] != -1) {
+					// push the children farthest first, the nearest one is popped first
+					int block = child[node];
+					int near = quadrant(node, x, y);
+					stack[top++] = block + (near ^ 3);
+					stack[top++] = block + (near ^ 1);
+					stack[top++] = block + (near ^ 2);
+					stack[top++] = block + near;
+					continue;
+				}
+				for(int i = head[node]; i != -1; i = itemNext[i]) {
+					float dx = itemX[i]-x, dy = itemY[i]-y;
+					float d2 = dx*dx + dy*dy;
+					if(d2 < best2 || (d2 == best2 && (best == -1 || i < best))) {
+						best2 = d2;
+						best = i;
+					}
+				}
+			}
+			return best;
+		}
+		
+	}
+
+}
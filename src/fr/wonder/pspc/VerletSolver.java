@@ -0,0 +1,151 @@
+package fr.wonder.pspc;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import fr.wonder.pspc.SketchSpatial.Grid;
+
+/**
+ * Verlet integration with sphere-sphere contacts for a {@link ParticleBuffer}.<br>
+ * <br>
+ * Every step the particles are sorted into a {@link Grid} whose cells are
+ * as large as the largest sphere, so a sphere can only touch spheres of its
+ * cell and of the 8 cells around it. Contacts are resolved cell by cell,
+ * each cell handling its own pairs and the pairs shared with half of its
+ * neighbours, in 9 passes: a pass handles the cells whose column and row
+ * are the same modulo 3. Cells of a pass are at least 3 cells apart and
+ * never move the same spheres, they are resolved in parallel and the
+ * result does not depend on the number of threads nor on scheduling.<br>
+ * <br>
+ * Overlapping spheres are moved apart along the line joining them by the
+ * overlap times the {@link #setResponse(float) response}, half each.
+ */
+public class VerletSolver {
+	
+	/** Below this many particles contacts are resolved on the calling thread */
+	private static final int PARALLEL_THRESHOLD = 2000;
+	/** Number of cells resolved by a task */
+	private static final int GRAIN = 32;
+	
+	private final Grid grid;
+	private float response = .25f;
+	
+	/**
+	 * @param maxRadius the largest sphere radius, larger spheres can miss contacts.
+	 *        Spheres outside of the bounds are still handled but slower.
+	 */
+	public VerletSolver(float minX, float minY, float maxX, float maxY, float maxRadius) {
+		this.grid = new Grid(minX, minY, maxX, maxY, 2*maxRadius);
+	}
+	
+	/**
+	 * Sets the fraction of the overlap removed per contact and per step,
+	 * defaults to .25. Higher values separate spheres faster but large
+	 * piles start to jitter, then explode, above .5.
+	 */
+	public void setResponse(float response) {
+		if(response <= 0 || response > 1)
+			throw new IllegalArgumentException("Invalid response " + response);
+		this.response = response;
+	}
+	
+	/** Integrates the particles with their accelerations then resolves contacts */
+	public void step(ParticleBuffer p, float dt) {
+		p.integrateVerlet(dt);
+		resolveContacts(p);
+	}
+	
+	/** Moves overlapping spheres apart, see the class documentation */
+	public void resolveContacts(ParticleBuffer p) {
+		int n = p.size();
+		grid.build(p.x, p.y, n);
+		for(int pass = 0; pass < 9; pass++) {
+			int col0 = pass % 3, row0 = pass / 3;
+			int passCols = (grid.cols()-col0+2) / 3;
+			int passRows = (grid.rows()-row0+2) / 3;
+			int cells = passCols*passRows;
+			if(n < PARALLEL_THRESHOLD)
+				resolveCells(p, col0, row0, passCols, 0, cells);
+			else
+				ForkJoinPool.commonPool().invoke(new PassTask(p, col0, row0, passCols, 0, cells));
+		}
+	}
+	
+	/** Resolves the cells [from,to[ of a pass, numbered row by row among the cells of the pass */
+	private void resolveCells(ParticleBuffer p, int col0, int row0, int passCols, int from, int to) {
+		for(int t = from; t < to; t++)
+			resolveCell(p, col0 + (t % passCols)*3, row0 + (t / passCols)*3);
+	}
+	
+	private void resolveCell(ParticleBuffer p, int col, int row) {
+		int cols = grid.cols(), rows = grid.rows();
+		int cell = col + row*cols;
+		int start = grid.cellStart(cell), end = grid.cellEnd(cell);
+		for(int k = start; k < end; k++) {
+			int i = grid.item(k);
+			for(int l = k+1; l < end; l++)
+				collide(p, i, grid.item(l));
+			// half of the neighbours, every pair of adjacent cells is handled once
+			if(col+1 < cols)
+				collideCell(p, i, cell+1);
+			if(row+1 < rows) {
+				if(col > 0)
+					collideCell(p, i, cell+cols-1);
+				collideCell(p, i, cell+cols);
+				if(col+1 < cols)
+					collideCell(p, i, cell+cols+1);
+			}
+		}
+	}
+	
+	private void collideCell(ParticleBuffer p, int i, int cell) {
+		for(int l = grid.cellStart(cell), end = grid.cellEnd(cell); l < end; l++)
+			collide(p, i, grid.item(l));
+	}
+	
+	private void collide(ParticleBuffer p, int i, int j) {
+		float[] x = p.x, y = p.y;
+		float dx = x[i]-x[j], dy = y[i]-y[j];
+		float minDist = p.radius[i]+p.radius[j];
+		float d2 = dx*dx + dy*dy;
+		if(d2 >= minDist*minDist || d2 == 0)
+			return;
+		float d = (float) Math.sqrt(d2);
+		float f = (minDist-d)/d * .5f * response;
+		x[i] += dx*f;
+		y[i] += dy*f;
+		x[j] -= dx*f;
+		y[j] -= dy*f;
+	}
+	
+	private class PassTask extends RecursiveAction {
+		
+		private static final long serialVersionUID = 1L;
+		
+		private final ParticleBuffer p;
+		private final int col0, row0, passCols, from, to;
+		
+		PassTask(ParticleBuffer p, int col0, int row0, int passCols, int from, int to) {
+			this.p = p;
+			this.col0 = col0;
+			this.row0 = row0;
+			this.passCols = passCols;
+			this.from = from;
+			this.to = to;
+		}
+		
+		@Override
+		protected void compute() {
+			if(to-from <= GRAIN) {
+				resolveCells(p, col0, row0, passCols, from, to);
+			} else {
+				int mid = (from+to) >>> 1;
+				invokeAll(
+						new PassTask(p, col0, row0, passCols, from, mid),
+						new PassTask(p, col0, row0, passCols, mid, to));
+			}
+		}
+		
+	}
+
+}
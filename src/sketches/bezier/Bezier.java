@@ -1,17 +1,16 @@
 package sketches.bezier;
 
 import java.awt.Color;
-import java.util.ArrayList;
-import java.util.List;
 
 import fr.wonder.pspc.Sketch;
+import fr.wonder.pspc.SketchMath.BezierCurve;
 
 public class Bezier extends Sketch {
 
 	final float step = 1/120f;
 	
 	// runtime
-	List<Vec2> points = new ArrayList<>();
+	BezierCurve curve = new BezierCurve(step);
 	boolean displayLines = true;
 	
 	public static void main(String[] args) {
@@ -33,7 +32,7 @@ public class Bezier extends Sketch {
 	public void keyPressed(char key) {
 		print(key);
 		if(key == ' ')
-			genPoints(points.size());
+			genPoints(curve.size());
 		if(key == 'h')
 			displayLines = !displayLines;
 		if('1' <= key && key <= '9')
@@ -42,21 +41,24 @@ public class Bezier extends Sketch {
 	
 	@Override
 	public void mousePressed(int button) {
-		Vec2 mouse = new Vec2(mouseX, mouseY);
 		print(button);
 		if(button == CLICK_LEFT) {
-			points.add(mouse);
+			curve.add(mouseX, mouseY);
 		} else if(button == CLICK_RIGHT) {
-			points.removeIf(pt -> pt.distanceTo(mouse) < 10);
-			if(points.isEmpty())
-				points.add(mouse);
+			for(int i = curve.size()-1; i >= 0; i--) {
+				float dx = curve.x(i)-mouseX, dy = curve.y(i)-mouseY;
+				if(dx*dx + dy*dy < 10*10)
+					curve.remove(i);
+			}
+			if(curve.size() == 0)
+				curve.add(mouseX, mouseY);
 		}
 	}
 	
 	void genPoints(int count) {
-		points.clear();
+		curve.clear();
 		for(int i = 0; i < count; i++) {
-			points.add(new Vec2(random()*winWidth, random()*winHeight));
+			curve.add(random()*winWidth, random()*winHeight);
 		}
 	}
 	
@@ -66,48 +68,40 @@ public class Bezier extends Sketch {
 		
 		float delta = fract(frame*step);
 		
-		strokeWidth(1f);
-		curve(delta, displayLines);
+		if(displayLines) {
+			strokeWidth(1f);
+			drawConstruction(delta);
+		}
 		
 		strokeWidth(2f);
 		stroke(Color.WHITE);
-		Vec2 prev = curve(0, false);
-		for(float i = step; i < delta; i += step) {
-			Vec2 next = curve(i, false);
-			line(prev.x, prev.y, next.x, next.y);
-			prev = next;
-		}
+		noFill();
+		int samples = curve.polyline(delta);
+		float[] xs = curve.polylineX(), ys = curve.polylineY();
+		beginShape();
+		for(int i = 0; i < samples; i++)
+			vertex(xs[i], ys[i]);
+		endShape(false);
 		
 		noStroke();
 		fill(Color.WHITE);
-		for(Vec2 v : points) {
-			circle(v.x, v.y, 5f);
+		for(int i = 0; i < curve.size(); i++) {
+			circle(curve.x(i), curve.y(i), 5f);
 		}
 	}
 	
-	Vec2 curve(float delta, boolean draw) {
-		return curve(points.toArray(Vec2[]::new), delta, draw);
-	}
-	
-	Vec2 curve(Vec2[] positions, float delta, boolean draw) {
-		if(draw) {
-			stroke(colorInScheme(positions.length));
-			fill(colorInScheme(positions.length));
-		}
-		Vec2[] subPositions = new Vec2[positions.length-1];
-		for(int i = 0; i < positions.length-1; i++) {
-			Vec2 u = positions[i];
-			Vec2 v = positions[i+1];
-			Vec2 w = v.minus(u).times(delta).plus(u);
-			subPositions[i] = w;
-			if(draw) {
-				line(u.x, u.y, v.x, v.y);
-				circle(w.x, w.y, 3f);
+	/** Draws the intermediate segments and points of de Casteljau's algorithm at t */
+	void drawConstruction(float t) {
+		curve.evaluate(t, Vec2.scratch(0));
+		for(int level = 0; level < curve.size()-1; level++) {
+			int count = curve.size()-level;
+			stroke(colorInScheme(count));
+			fill(colorInScheme(count));
+			for(int i = 0; i < count-1; i++) {
+				line(curve.levelX(level, i), curve.levelY(level, i), curve.levelX(level, i+1), curve.levelY(level, i+1));
+				circle(curve.levelX(level+1, i), curve.levelY(level+1, i), 3f);
 			}
 		}
-		if(positions.length == 1)
-			return positions[0];
-		return curve(subPositions, delta, draw);
 	}
 	
 }
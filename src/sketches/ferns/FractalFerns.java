@@ -22,20 +22,26 @@ public class FractalFerns extends Sketch {
 	};
 	
 	int firstFrame = 0;
+	float pixelSize;
 	
 	@Override
 	public void setup() {
 		setWinSize(800, 800);
 		stroke(Color.white);
 		strokeWidth(2);
+		setFastMath(true);
 	}
 	
 	@Override
 	public void draw() {
 		clear();
+		viewport(viewport[0], viewport[1], viewport[2], viewport[3], .1f);
+		pixelSize = pixelSize();
 		float t = (frame-firstFrame)/framerate*3;
+		// the viewport margin leaves 1/8 of the viewport size visible around it
+		float marginX = (viewport[1]-viewport[0])/8, marginY = (viewport[3]-viewport[2])/8;
 		for(Tree tree : trees) {
-			tree.draw(t);
+			tree.draw(t, viewport[0]-marginX, viewport[1]+marginX, viewport[2]-marginY, viewport[3]+marginY);
 			tree.wind = cos(t/2f)*WIND_FORCE;
 		}
 	}
@@ -59,64 +65,162 @@ public class FractalFerns extends Sketch {
 			regenTree();
 	}
 	
+	/**
+	 * The branches of a tree are flattened once in breadth-first order in
+	 * primitive arrays, each frame only applies the growth and the wind to
+	 * them and draws the visible ones, one batch per degree.
+	 */
 	private class Tree {
 		
+		/** Deeper levels are not generated when the tree would have more branches */
+		private static final int MAX_BRANCHES = 1 << 20;
+		
 		private final int maxDegree;
 		private final float[] sbranches;
 		private final float rootX, rootY, rootTheta = PI/2;
 		
 		public float wind;
 		
+		// branches of degree d are [levelStart[d], levelStart[d+1][
+		private final int levels;
+		private final int[] levelStart;
+		private final float[] levelLength, levelWeight;
+		/** upper bound of the distance between the start of a branch of degree d and any point of its subtree */
+		private final float[] levelExtent;
+		private final int[] parent;
+		/** start of the branch along its parent, as a fraction of the parent length */
+		private final float[] offset;
+		/** direction without wind and growth fraction at which the branch appears */
+		private final float[] baseCos, baseSin, birth;
+		
+		// per frame state
+		private final float[] x, y, dirX, dirY;
+		private final boolean[] culled;
+		private final float[] x1s, y1s, x2s, y2s;
+		
 		public Tree(float rootX, float rootY, int maxDegree, float[] sbranches) {
 			this.rootX = rootX;
 			this.rootY = rootY;
 			this.maxDegree = maxDegree;
 			this.sbranches = sbranches;
-		}
-		
-		public void draw(float lengthFraction) {
-			branch(rootX, rootY, rootTheta, lengthFraction, 0);
-		}
-		
-		private void branch(
-				float x, float y, float theta,
-				float lengthFraction, int degree) {
 			
-			if(lengthFraction <= 0)
-				return;
-			
-//			float weight = 1f/(1+degree);
-			float weight = 1-(float)degree/(2+maxDegree);
-			float lineLength = 10f*weight;
-			drawBranch(x, y, theta, lineLength*min(1, lengthFraction), weight);
+			int children = sbranches.length/2;
+			// branches have degrees 0 to maxDegree+1
+			int levelCount = 0;
+			long total = 0, levelSize = 1;
+			int[] starts = new int[maxDegree+3];
+			while(levelCount < maxDegree+2 && total+levelSize <= MAX_BRANCHES) {
+				starts[levelCount++] = (int) total;
+				total += levelSize;
+				levelSize *= children;
+			}
+			starts[levelCount] = (int) total;
+			this.levels = levelCount;
+			this.levelStart = Arrays.copyOf(starts, levelCount+1);
+			int n = (int) total;
 			
-			if(degree > maxDegree)
-				return;
+			levelLength = new float[levels];
+			levelWeight = new float[levels];
+			levelExtent = new float[levels];
+			float maxOffset = 0;
+			for(int i = 0; i < sbranches.length; i += 2)
+				maxOffset = max(maxOffset, sbranches[i]);
+			for(int d = 0; d < levels; d++) {
+//				levelWeight[d] = 1f/(1+d);
+				levelWeight[d] = 1-(float)d/(2+maxDegree);
+				levelLength[d] = 10f*levelWeight[d];
+			}
+			levelExtent[levels-1] = levelLength[levels-1];
+			for(int d = levels-2; d >= 0; d--)
+				levelExtent[d] = Math.max(levelLength[d], maxOffset*levelLength[d] + levelExtent[d+1]);
 			
-			for(int i = 0; i < sbranches.length; i += 2) {
-				float a = sbranches[ i ];
-				float t = sbranches[i+1];
-				float lenf = lengthFraction - a;
-				branch(
-						x+cos(theta)*lineLength*a,
-						y+sin(theta)*lineLength*a,
-						theta+t + wind,
-						lenf,
-						degree+1);
+			parent = new int[n];
+			offset = new float[n];
+			baseCos = new float[n];
+			baseSin = new float[n];
+			birth = new float[n];
+			float[] angle = new float[n];
+			parent[0] = -1;
+			angle[0] = rootTheta;
+			for(int d = 1; d < levels; d++) {
+				int b = levelStart[d];
+				for(int p = levelStart[d-1]; p < levelStart[d]; p++) {
+					for(int i = 0; i < sbranches.length; i += 2, b++) {
+						parent[b] = p;
+						offset[b] = sbranches[i];
+						angle[b] = angle[p] + sbranches[i+1];
+						birth[b] = birth[p] + sbranches[i];
+					}
+				}
 			}
+			for(int b = 0; b < n; b++) {
+				baseCos[b] = (float) Math.cos(angle[b]);
+				baseSin[b] = (float) Math.sin(angle[b]);
+			}
+			
+			x = new float[n];
+			y = new float[n];
+			dirX = new float[n];
+			dirY = new float[n];
+			culled = new boolean[n];
+			int widestLevel = levelStart[levels]-levelStart[levels-1];
+			x1s = new float[widestLevel];
+			y1s = new float[widestLevel];
+			x2s = new float[widestLevel];
+			y2s = new float[widestLevel];
 		}
 		
-		private void drawBranch(float x, float y, float theta, float length, float weight) {
-			float x1 = x;
-			float y1 = y;
-			float x2 = x+cos(theta)*length;
-			float y2 = y+sin(theta)*length;
-			x1 = mix(x1, viewport[0], viewport[1], .1f*winWidth, .9f*winWidth);
-			x2 = mix(x2, viewport[0], viewport[1], .1f*winWidth, .9f*winWidth);
-			y1 = mix(y1, viewport[2], viewport[3], .9f*winHeight, .1f*winHeight);
-			y2 = mix(y2, viewport[2], viewport[3], .9f*winHeight, .1f*winHeight);
-			strokeWidth(3*weight);
-			line(x1, y1, x2, y2);
+		/**
+		 * Draws the tree grown up to lengthFraction. Subtrees entirely out of
+		 * the given bounds or smaller than a pixel are culled, branches drawn
+		 * shorter than a pixel are skipped.
+		 */
+		public void draw(float lengthFraction, float xmin, float xmax, float ymin, float ymax) {
+			for(int d = 0; d < levels; d++) {
+				// the wind bends every level by the same angle
+				float windCos = cos(d*wind), windSin = sin(d*wind);
+				float length = levelLength[d], extent = levelExtent[d];
+				float parentLength = d == 0 ? 0 : levelLength[d-1];
+				int count = 0;
+				for(int b = levelStart[d]; b < levelStart[d+1]; b++) {
+					int p = parent[b];
+					if(p >= 0 && culled[p]) {
+						culled[b] = true;
+						continue;
+					}
+					float bx, by;
+					if(p < 0) {
+						bx = rootX;
+						by = rootY;
+					} else {
+						bx = x[p] + dirX[p]*parentLength*offset[b];
+						by = y[p] + dirY[p]*parentLength*offset[b];
+					}
+					float grown = lengthFraction - birth[b];
+					if(grown <= 0 || extent < pixelSize ||
+							bx+extent < xmin || bx-extent > xmax || by+extent < ymin || by-extent > ymax) {
+						culled[b] = true;
+						continue;
+					}
+					culled[b] = false;
+					float dx = baseCos[b]*windCos - baseSin[b]*windSin;
+					float dy = baseSin[b]*windCos + baseCos[b]*windSin;
+					x[b] = bx;
+					y[b] = by;
+					dirX[b] = dx;
+					dirY[b] = dy;
+					float drawnLength = length*min(1, grown);
+					if(drawnLength < pixelSize)
+						continue;
+					x1s[count] = bx;
+					y1s[count] = by;
+					x2s[count] = bx + dx*drawnLength;
+					y2s[count] = by + dy*drawnLength;
+					count++;
+				}
+				strokeWidth(3*levelWeight[d]*pixelSize);
+				lines(x1s, y1s, x2s, y2s, count);
+			}
 		}
 		
 		@Override
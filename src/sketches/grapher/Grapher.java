@@ -5,36 +5,32 @@ import java.awt.Color;
 import fr.wonder.commons.math.ease.Transforms;
 import fr.wonder.commons.math.ease.EaseTransforms;
 import fr.wonder.commons.math.ease.Transform;
+import fr.wonder.pspc.FloatUnaryOperator;
 import fr.wonder.pspc.Sketch;
 
 public class Grapher extends Sketch {
 
 	private static final int WINSIZE = 400;
-	private static final float PRECISION = .01f;
+	
+	// built once, plots are cached per function instance
+	private final Transform transform = EaseTransforms.EASEIN_CIRC
+			.andThen(Transforms.clamp(.2f, .8f))
+			.andThen(Transforms.mod(.3f));
+	private final FloatUnaryOperator f = transform::apply;
 	
 	@Override
 	public void setup() {
 		setWinSize(WINSIZE, WINSIZE);
-		strokeWidth(2);
 		stroke(Color.WHITE);
+		noFill();
 	}
 
 	@Override
 	public void draw() {
 		clear();
-		
-		Transform f = EaseTransforms.EASEIN_CIRC
-				.andThen(Transforms.clamp(.2f, .8f))
-				.andThen(Transforms.mod(.3f));
-		
-		float y1 = f.apply(0);
-		for(float i = PRECISION; i < 1; i += PRECISION) {
-			float x1 = i - PRECISION;
-			float x2 = i;
-			float y2 = f.apply(x2);
-			line(x1*WINSIZE, WINSIZE-y1*WINSIZE, x2*WINSIZE, WINSIZE-y2*WINSIZE);
-			y1 = y2;
-		}
+		viewport(0, 1, 0, 1);
+		strokeWidth(2*pixelSize());
+		plotFunction(f, 0, 1);
 	}
 	
 	public static void main(String[] args) {
@@ -1,15 +1,18 @@
 package sketches.nbodies;
 
 import java.awt.Color;
-import java.util.ArrayList;
-import java.util.List;
 
+import fr.wonder.pspc.GravitySolver;
+import fr.wonder.pspc.ParticleBuffer;
 import fr.wonder.pspc.Sketch;
 
 public class NBodiesSimulation extends Sketch {
 
 	public static void main(String[] args) {
 		System.out.println("click to add a body");
+		System.out.println("Press g to add a galaxy of 1000 bodies");
+		System.out.println("Press b to switch between the exact and Barnes-Hut solvers");
+		System.out.println("Press c to check the Barnes-Hut solver against the exact one");
 		new NBodiesSimulation().start();
 	}
 	
@@ -17,31 +20,33 @@ public class NBodiesSimulation extends Sketch {
 	static final int FRAMERATE = 60;         // ok, I have no idea of how the delta or the 
 	static final float DELTA = 1f/FRAMERATE; // framerate are supposed to impact the simulation
 	
-	class Body {
-		
-		Vec2 pos;
-		Vec2 movement;
-		float mass;
-		float radius;
-		Color c = nextColorInScheme();
-		
-		Body(float x, float y, float dx, float dy, float mass) {
-			this.pos = new Vec2(x, y);
-			this.movement = new Vec2(dx, dy);
-			this.mass = mass;
-			this.radius = min(mass, 50);
-		}
-		
-	}
+	/** Simulated time per second, each substep simulates DELTA */
+	static final float SIMULATION_SPEED = 60;
+	/** Share of an update the substeps may take, the simulation slows down past it */
+	static final float STEP_BUDGET = .8f;
+	/** Above this many bodies the velocity arrows are not drawn */
+	static final int MAX_ARROWS = 1000;
 	
-	List<Body> bodies = new ArrayList<>();
+	ParticleBuffer bodies = new ParticleBuffer();
+	GravitySolver solver = new GravitySolver(10*G);
+	boolean checkSolver = false;
+	/** moving average of the duration of a substep */
+	float stepNanos;
+	int checkedSteps, checkFailures;
+	String checkStatus;
+	// copy of the bodies state used by draw, taken in snapshot()
+	ParticleBuffer drawn = new ParticleBuffer();
 	
 	@Override
 	public void setup() {
 		setWinSize(700, 700);
 		setFramerate(FRAMERATE);
+		setUpdateRate(FRAMERATE);
 		clearColor(new Color(0, 0, 0, .05f));
 		stroke(Color.RED);
+		setSubpixelPrecision(true);
+		setStrokePure(true);
+		solver.setThreads(Runtime.getRuntime().availableProcessors());
 		
 //		for(int i = 0; i < 10; i++) {
 //			bodies.add(new Body(
@@ -50,47 +55,93 @@ public class NBodiesSimulation extends Sketch {
 //					random(5, 10)));
 //		}
 //		bodies.add(new Body(new Vec2(winWidth/2, winHeight/2), new Vec2(), 1000));
-		bodies.add(new Body(winWidth/2, winHeight*3/4,  1, 0, 10));
-		bodies.add(new Body(winWidth/2, winHeight*1/4, -1, 0, 10));
+		addBody(winWidth/2, winHeight*3/4,  1, 0, 10);
+		addBody(winWidth/2, winHeight*1/4, -1, 0, 10);
+	}
+	
+	void addBody(float x, float y, float dx, float dy, float mass) {
+		bodies.add(x, y, dx, dy, mass, min(mass, 50));
 	}
 
 	@Override
-	public void draw() {
-		for(int s = 0; s < FRAMERATE; s++) {
-			Vec2[] accelerations = new Vec2[bodies.size()];
-			
-			for(int i = 0; i < bodies.size(); i++) {
-				accelerations[i] = new Vec2();
-				Body b1 = bodies.get(i);
-				for(int j = 0; j < bodies.size(); j++) {
-					if(j == i)
-						continue;
-					Body b2 = bodies.get(j);
-					Vec2 d = b2.pos.minus(b1.pos);
-					float minDist = b1.radius+b2.radius;
-					float r2 = max(d.lengthSquared(), minDist*minDist);
-					accelerations[i] = accelerations[i].plus(d.normalized().times(10*G*b2.mass/r2));
-				}
-			}
-			
-			for(int i = 0; i < bodies.size(); i++) {
-				Body b = bodies.get(i);
-				b.movement = b.movement.plus(accelerations[i].times(DELTA));
-				b.pos = b.pos.plus(b.movement.times(DELTA));
+	public void update(float dt) {
+		bodies.savePositions();
+		// as many substeps as the budget allows, evaluations get slower as bodies are added
+		int substeps = Math.round(dt*SIMULATION_SPEED/DELTA);
+		if(stepNanos > 0)
+			substeps = Math.max(1, Math.min(substeps, (int) (dt*STEP_BUDGET*1e9f/stepNanos)));
+		long start = System.nanoTime();
+		for(int s = 0; s < substeps; s++) {
+			try {
+				solver.computeAccelerations(bodies);
+			} catch (IllegalStateException e) {
+				// the accelerations are still computed, only report the failure
+				checkFailures++;
 			}
+			bodies.integrateEuler(DELTA);
 		}
-		
+		float nanos = (System.nanoTime()-start)/(float)substeps;
+		stepNanos = stepNanos == 0 ? nanos : lerp(.2f, stepNanos, nanos);
+		if(checkSolver)
+			checkedSteps += substeps;
+	}
+	
+	@Override
+	public void snapshot() {
+		// the previous positions are the positions at the start of the last update
+		drawn.copyFrom(bodies);
+		checkStatus = checkSolver ? checkFailures + "/" + checkedSteps + " steps over the tolerance, last error " + String.format("%.4f", solver.lastCheckError()) : null;
+	}
+
+	@Override
+	public void draw() {
 		clear();
-		for(Body b : bodies) {
-			circle(b.pos.x, b.pos.y, b.radius);
-			arrow(b.pos.x, b.pos.y, b.pos.x+b.movement.x, b.pos.y+b.movement.y);
+		if(checkStatus != null) {
+			// the clear is translucent, the text needs an opaque background
+			fill(Color.BLACK);
+			noStroke();
+			rect(0, 0, canvasWidth(), 24);
+			fill(Color.WHITE);
+			strokeWidth(1);
+			text(checkStatus, canvasWidth()/2, 12);
+		}
+		particles(drawn, updateAlpha);
+		if(drawn.size() > MAX_ARROWS)
+			return;
+		for(int i = 0; i < drawn.size(); i++) {
+			float x = lerp(updateAlpha, drawn.px[i], drawn.x[i]);
+			float y = lerp(updateAlpha, drawn.py[i], drawn.y[i]);
+			arrow(x, y, x+drawn.vx[i], y+drawn.vy[i]);
 		}
 	}
 
 	@Override
 	public void mousePressed(int button) {
 		if(button == CLICK_LEFT)
-			bodies.add(new Body(mouseX, mouseY, 0, 0, 10));
+			addBody(mouseX, mouseY, 0, 0, 10);
+	}
+	
+	@Override
+	public void keyPressed(char key) {
+		if(key == 'g') {
+			// a rotating disk of light bodies around the mouse
+			for(int i = 0; i < 1000; i++) {
+				float angle = random(0, 2*PI);
+				float distance = 10+random()*150;
+				float speed = sqrt(10*G*1000/distance)*.1f;
+				addBody(mouseX+cos(angle)*distance, mouseY+sin(angle)*distance,
+						-sin(angle)*speed, cos(angle)*speed, 1);
+			}
+		} else if(key == 'b') {
+			boolean exact = solver.getMethod() == GravitySolver.Method.EXACT;
+			solver.setMethod(exact ? GravitySolver.Method.BARNES_HUT : GravitySolver.Method.EXACT);
+			System.out.println("Solver: " + solver.getMethod());
+		} else if(key == 'c') {
+			checkSolver = !checkSolver;
+			solver.setCheckTolerance(checkSolver ? .1f : 0);
+			checkedSteps = checkFailures = 0;
+			System.out.println("Check mode: " + checkSolver);
+		}
 	}
 	
 }
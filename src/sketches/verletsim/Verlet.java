@@ -1,102 +1,110 @@
 package sketches.verletsim;
 
 import java.awt.Color;
-import java.util.ArrayList;
-import java.util.List;
 
+import fr.wonder.pspc.ParticleBuffer;
 import fr.wonder.pspc.Sketch;
+import fr.wonder.pspc.VerletSolver;
 
 public class Verlet extends Sketch {
 
 	private final int STEPS = 8;
+	private final int SPHERES = 10000;
 	
-	private final List<VerletSphere> spheres = new ArrayList<>();
+	private final ParticleBuffer spheres = new ParticleBuffer(SPHERES);
+	private final float MIN_RADIUS = .003f, MAX_RADIUS = .008f;
 	private final float dt = .03f / STEPS;
+	private final VerletSolver solver = new VerletSolver(-1, -1, 1, 1, MAX_RADIUS);
+	
+	// positions at the start of the last update and copy of the state drawn, taken in snapshot()
+	private float[] updateStartX = new float[SPHERES], updateStartY = new float[SPHERES];
+	private final ParticleBuffer drawn = new ParticleBuffer(SPHERES);
+	// positions and radii of the spheres of one color, drawn as a batch
+	private final float[] groupX = new float[SPHERES], groupY = new float[SPHERES], groupRadius = new float[SPHERES];
 	
 	public static void main(String[] args) {
 		new Verlet().start();
 	}
-
+	
 	@Override
 	public void setup() {
 		setWinSize(700, 700);
+		setUpdateRate(60);
 		clearColor(Color.white);
 		noStroke();
+		setSubpixelPrecision(true);
+		setStrokePure(true);
 		
-		for(int i = 0; i < 40; i++) {
-			spheres.add(new VerletSphere(randPos(), random(.01f, .1f), colorInScheme(i)));
+		// spheres start on a jittered lattice so that they do not overlap
+		float spacing = 2*MAX_RADIUS;
+		for(float y = -.95f; y < .95f && spheres.size() < SPHERES; y += spacing) {
+			for(float x = -.95f; x < .95f && spheres.size() < SPHERES; x += spacing) {
+				float jx = x + random(-.1f, .1f)*spacing;
+				float jy = y + random(-.1f, .1f)*spacing;
+				if(jx*jx + jy*jy < .9f*.9f)
+					spheres.add(jx, jy, 0, 0, 1, random(MIN_RADIUS, MAX_RADIUS));
+			}
 		}
-	}
-	
-	private Vec2 randPos() {
-		return Vec2.unitary(random()*2*PI).times(random()*.8f);
+		System.arraycopy(spheres.x, 0, updateStartX, 0, spheres.size());
+		System.arraycopy(spheres.y, 0, updateStartY, 0, spheres.size());
 	}
 	
 	private Vec2 acceleration(float t) {
 		return new Vec2(0, -1);
 	}
-
+	
 	@Override
 	public void draw() {
 		clear();
+		viewport(-1, 1, -1, 1);
 		fill(Color.black);
-		circle(winWidth/2, winHeight/2, winWidth/2);
+		circle(0, 0, 1);
 		
+		// spheres are drawn in one batch per color, sphere i has the i-th scheme color
+		int colorCount = DEFAULT_COLOR_SCHEME.length;
+		for(int c = 0; c < colorCount; c++) {
+			int n = 0;
+			for(int i = c; i < drawn.size(); i += colorCount, n++) {
+				groupX[n] = lerp(updateAlpha, drawn.px[i], drawn.x[i]);
+				groupY[n] = lerp(updateAlpha, drawn.py[i], drawn.y[i]);
+				groupRadius[n] = drawn.radius[i];
+			}
+			fill(colorInScheme(c));
+			circles(groupX, groupY, groupRadius, n);
+		}
+	}
+	
+	@Override
+	public void update(float delta) {
+		System.arraycopy(spheres.x, 0, updateStartX, 0, spheres.size());
+		System.arraycopy(spheres.y, 0, updateStartY, 0, spheres.size());
 		for(int i = 0; i < STEPS; i++)
 			step();
-
-		for(VerletSphere s : spheres) {
-			fill(s.color);
-			circle( mix(s.pos.x, -1, 1, 0, winWidth),
-					mix(s.pos.y, -1, 1, winHeight, 0),
-					mix(s.radius, 0, 1, 0, winWidth/2f));
-		}
+	}
+	
+	@Override
+	public void snapshot() {
+		// in the drawn buffer the previous position is the position at the start of the update
+		drawn.copyFrom(spheres);
+		System.arraycopy(updateStartX, 0, drawn.px, 0, spheres.size());
+		System.arraycopy(updateStartY, 0, drawn.py, 0, spheres.size());
 	}
 	
 	private void step() {
 		Vec2 acceleration = acceleration(frame/framerate);
+		spheres.setAccelerations(acceleration.x, acceleration.y);
+		solver.step(spheres, dt);
 		
+		// clamp in bounds, the original constraint: spheres whose previous position
+		// is not inside the unit circle are scaled toward its center by 1/(l+r)
+		float[] x = spheres.x, y = spheres.y, px = spheres.px, py = spheres.py, radius = spheres.radius;
 		for(int i = 0; i < spheres.size(); i++) {
-			var s = spheres.get(i);
-			Vec2 p = s.pos.times(2f).minus(s.prevPos).plus(acceleration.times(dt*dt));
-			s.prevPos = s.pos;
-			
-			// push spheres
-			for(int j = 0; j < spheres.size(); j++) {
-				if(i == j)
-					continue;
-				var s2 = spheres.get(j);
-				Vec2 v = p.minus(s2.pos);
-				float d = s.radius + s2.radius;
-				if(v.length() < d) {
-					p = p.plus(v.times( .5f*dt));
-					s2.pos = s2.pos.plus(v.times(-.5f*dt));
-				}
+			float l = (float) Math.sqrt(px[i]*px[i] + py[i]*py[i]);
+			if(l + radius[i] > 1) {
+				x[i] /= l + radius[i];
+				y[i] /= l + radius[i];
 			}
-			
-			// clamp in bounds
-			float l = s.pos.length();
-			if(l + s.radius > 1)
-				p = p.times(1f/(l+s.radius));
-			
-			s.pos = p;
 		}
 	}
-	
-	static class VerletSphere {
-		
-		Vec2 pos;
-		Vec2 prevPos;
-		float radius;
-		Color color;
-		
-		VerletSphere(Vec2 pos, float radius, Color color) {
-			this.pos = pos;
-			this.prevPos = pos;
-			this.radius = radius;
-			this.color = color;
-		}
-		
-	}
-	
+
 }
@@ -0,0 +1,59 @@
+package fr.wonder.pspc;
+
+import java.awt.Color;
+import java.awt.image.BufferedImage;
+
+/**
+ * Checks that {@link Sketch#points(float[], float[], int)} covers a single
+ * canvas pixel per point when a viewport is set, for opaque and
+ * translucent fills. Run with {@code java fr.wonder.pspc.PointsTest}, it
+ * throws on failure.
+ */
+public class PointsTest {
+	
+	private static class PointsSketch extends Sketch {
+		
+		private final Color color;
+		
+		PointsSketch(Color color) {
+			this.color = color;
+		}
+		
+		@Override
+		public void setup() {
+			setWinSize(200, 200);
+		}
+		
+		@Override
+		public void draw() {
+			clear();
+			viewport(-1, 1, -1, 1);
+			fill(color);
+			points(new float[] { .5f }, new float[] { .5f }, 1);
+		}
+	
+	}
+	
+	public static void main(String[] args) {
+		check(new Color(255, 0, 0), 0xffff0000);
+		check(new Color(255, 0, 0, 128), 0xff800000);
+		System.out.println("ok");
+	}
+	
+	private static void check(Color fill, int expected) {
+		BufferedImage image = new PointsSketch(fill).startHeadless(1);
+		// (.5,.5) is at the center of the top right quarter, y goes up
+		int lit = 0;
+		for(int y = 0; y < image.getHeight(); y++) {
+			for(int x = 0; x < image.getWidth(); x++) {
+				if((image.getRGB(x, y) & 0xffffff) != 0)
+					lit++;
+			}
+		}
+		if(lit != 1)
+			throw new AssertionError(fill + ": " + lit + " pixels were drawn instead of 1");
+		if(image.getRGB(150, 50) != expected)
+			throw new AssertionError(fill + ": pixel (150,50) is " + Integer.toHexString(image.getRGB(150, 50)));
+	}
+
+}